@@ -0,0 +1,161 @@
+"""Writes the synthetic receipt PDFs used by the extractor checks.
+
+Each PDF is a single page with the text layer written the way a different
+producer would write it, so the checks cover the text operators, FlateDecode
+streams and ToUnicode maps without shipping real customer receipts.
+
+    python3 check/fixtures/make_fixtures.py
+"""
+import os
+import zlib
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+
+
+def pdf(objects):
+    """Builds a PDF from the bodies of its objects, object 1 is the catalog."""
+    out = bytearray(b"%PDF-1.4\n%\xe2\xe3\xcf\xd3\n")
+    offsets = []
+    for number, body in enumerate(objects, 1):
+        offsets.append(len(out))
+        out += b"%d 0 obj\n" % number + body + b"\nendobj\n"
+    xref = len(out)
+    out += b"xref\n0 %d\n0000000000 65535 f \n" % (len(objects) + 1)
+    for offset in offsets:
+        out += b"%010d 00000 n \n" % offset
+    out += b"trailer\n<< /Size %d /Root 1 0 R >>\nstartxref\n%d\n%%%%EOF\n" % (len(objects) + 1, xref)
+    return bytes(out)
+
+
+def stream(data, extra=b"", flate=False):
+    if flate:
+        data = zlib.compress(data)
+        extra += b" /Filter /FlateDecode"
+    return b"<< /Length %d%s >>\nstream\n" % (len(data), extra) + data + b"\nendstream"
+
+
+def page(content, font, extra_objects=()):
+    return [
+        b"<< /Type /Catalog /Pages 2 0 R >>",
+        b"<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+        b"<< /Type /Page /Parent 2 0 R /MediaBox [0 0 226 600] "
+        b"/Resources << /Font << /F1 5 0 R >> >> /Contents 4 0 R >>",
+        content,
+        font,
+    ] + list(extra_objects)
+
+
+HELVETICA = b"<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"
+
+
+def plain():
+    """Uncompressed, one Td and Tj per line, the way the CUPS text filter writes it."""
+    lines = [
+        "Corner Coffee Co.",
+        "12 Main St, Springfield",
+        "12/06/2021 3:42 PM",
+        "2 x Latte 4.50 9.00",
+        "Blueberry Muffin 3.25",
+        "Oat Milk 0.50 T",
+        "Bottled Water 1.00",
+        "Subtotal 13.75",
+        "Sales Tax 0.96",
+        "Total $14.71",
+        "Cash 20.00",
+        "Change 5.29",
+        "Thank you (come again)!",
+    ]
+    return text_page(lines)
+
+
+def cards():
+    """Items named like payment lines, which are only payments after the total."""
+    lines = [
+        "Corner Drug Store",
+        "01/15/2022 10:05 AM",
+        "Gift Card 25.00",
+        "Greeting Card 4.50",
+        "Cash Register Tape 3.99",
+        "Total 33.49",
+        "Visa Card 33.49",
+        "Change 0.00",
+    ]
+    return text_page(lines)
+
+
+def text_page(lines):
+    """One Td and Tj per line, the way the CUPS text filter writes it."""
+    ops = [b"BT /F1 9 Tf 10 580 Td"]
+    for i, line in enumerate(lines):
+        text = line.replace("\\", "\\\\").replace("(", "\\(").replace(")", "\\)").encode("latin-1")
+        ops.append((b"" if i == 0 else b"0 -12 Td ") + b"(" + text + b") Tj")
+    ops.append(b"ET")
+    return pdf(page(stream(b"\n".join(ops)), HELVETICA))
+
+
+def flate():
+    """Compressed, with TJ kerning arrays, T* and ' line moves, and an image to skip."""
+    content = b"\n".join([
+        b"q 50 0 0 20 10 10 cm /Im1 Do Q",
+        b"BT /F1 9 Tf 12 TL 10 580 Td",
+        b"[(Gr)20(een)-400(Grocer)] TJ",
+        b"T* (2021-11-30 09:05) Tj",
+        b"T* [(Apples)-1200(3.98)] TJ",
+        b"T* (Lemons 3 @ 1.25) Tj 120 0 Td (3.75) Tj",
+        b"0 -12 Td [(Bread)-1500(2,001.00)] TJ",
+        b"(SUBTOTAL 2,008.73) '",
+        b"(TAX 160.70) '",
+        b"(BALANCE DUE 2,169.43) '",
+        b"(VISA 2,169.43) '",
+        b"ET",
+    ])
+    image = stream(b"\x00\xff" * 50, b" /Type /XObject /Subtype /Image /Width 10 /Height 10"
+                   b" /ColorSpace /DeviceGray /BitsPerComponent 8")
+    return pdf(page(stream(content, flate=True), HELVETICA, [image]))
+
+
+def tounicode():
+    """Two byte glyph codes that only make sense through the ToUnicode map."""
+    text = [
+        "Café Olé",
+        "Espresso 2.80",
+        "Total 2.80",
+    ]
+    cmap = {}
+    for ch in sorted(set("".join(text))):
+        cmap[ch] = 0x0100 + len(cmap)
+
+    def encode(line):
+        return b"<" + "".join("%04X" % cmap[c] for c in line).encode("ascii") + b">"
+
+    content = b"BT /F1 9 Tf 10 580 Td " + b" 0 -12 Td ".join(encode(l) + b" Tj" for l in text) + b" ET"
+
+    # Letters go in one bfrange per run of consecutive codes, the rest in bfchar
+    chars = sorted(cmap.items(), key=lambda kv: kv[1])
+    bfchar = b"".join(b"<%04X> <%04X>\n" % (code, ord(ch)) for ch, code in chars[1:])
+    first, code = chars[0]
+    bfrange = b"<%04X> <%04X> <%04X>\n" % (code, code, ord(first))
+    to_unicode = (b"/CIDInit /ProcSet findresource begin 12 dict begin begincmap\n"
+                  b"1 begincodespacerange <0000> <FFFF> endcodespacerange\n"
+                  b"%d beginbfchar\n" % (len(chars) - 1) + bfchar + b"endbfchar\n"
+                  b"1 beginbfrange\n" + bfrange + b"endbfrange\n"
+                  b"endcmap CMapName currentdict /CMap defineresource pop end end")
+    font = (b"<< /Type /Font /Subtype /Type0 /BaseFont /ReceiptSans /Encoding /Identity-H"
+            b" /ToUnicode 6 0 R >>")
+    return pdf(page(stream(content), font, [stream(to_unicode, flate=True)]))
+
+
+def scanned():
+    """A scanned receipt, the page is only an image with no text layer."""
+    content = stream(b"q 200 0 0 500 10 10 cm /Im1 Do Q", flate=True)
+    image = stream(zlib.compress(b"\x80" * 400), b" /Type /XObject /Subtype /Image /Width 20 /Height 20"
+                   b" /ColorSpace /DeviceGray /BitsPerComponent 8 /Filter /FlateDecode")
+    return pdf(page(content, HELVETICA, [image]))
+
+
+if __name__ == "__main__":
+    for name, build in [("receipt-plain.pdf", plain), ("receipt-cards.pdf", cards), ("receipt-flate.pdf", flate),
+                        ("receipt-tounicode.pdf", tounicode), ("receipt-scanned.pdf", scanned)]:
+        with open(os.path.join(HERE, name), "wb") as f:
+            f.write(build())
+        print("wrote", name)
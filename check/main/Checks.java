@@ -0,0 +1,113 @@
+package main;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+/**
+ * The assertions used by the self checks under {@code check/}. Each check is a
+ * plain main class that calls these and then {@link #done()}, which exits with
+ * a non zero status if anything failed. Run them all with {@code check/run.sh}.
+ */
+public final class Checks {
+    private static final PrintStream OUT = new PrintStream(new FileOutputStream(FileDescriptor.out), true);
+    private static int passed;
+    private static int failed;
+
+    private Checks() {
+    }
+
+    /**
+     * Work that is allowed to throw, used for the failure checks.
+     */
+    @FunctionalInterface
+    public interface Work {
+        void run() throws Exception;
+    }
+
+    public static void equal(String what, Object expected, Object actual) {
+        if (Objects.equals(expected, actual))
+            pass(what);
+        else
+            fail(what, String.format("expected <%s> but was <%s>", expected, actual));
+    }
+
+    public static void isTrue(String what, boolean condition) {
+        if (condition)
+            pass(what);
+        else
+            fail(what, "was false");
+    }
+
+    /**
+     * Checks that the work throws the given type of exception.
+     */
+    public static void fails(String what, Class<? extends Throwable> type, Work work) {
+        try {
+            work.run();
+            fail(what, String.format("expected %s but nothing was thrown", type.getSimpleName()));
+        } catch (Throwable t) {
+            if (type.isInstance(t))
+                pass(what);
+            else
+                fail(what, String.format("expected %s but got %s", type.getSimpleName(), t));
+        }
+    }
+
+    /**
+     * Gets a file from {@code check/fixtures}.
+     */
+    public static Path fixture(String name) {
+        return Paths.get(System.getProperty("check.fixtures", "check/fixtures")).resolve(name);
+    }
+
+    /**
+     * Prints the totals and exits, with status 1 if any check failed.
+     */
+    public static void done() {
+        OUT.println(String.format("%d passed, %d failed", passed, failed));
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs the body of a check, an exception it throws counts as a failure.
+     */
+    public static void run(Work checks) {
+        try {
+            checks.run();
+        } catch (Exception | AssertionError e) {
+            fail("check threw", e.toString());
+            e.printStackTrace();
+        }
+        done();
+    }
+
+    /**
+     * Prints a line to the real console, the reader silences {@code System.out}.
+     */
+    public static void print(String line) {
+        OUT.println(line);
+    }
+
+    /**
+     * Creates a temporary directory for the check to work in.
+     */
+    public static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    private static void pass(String what) {
+        passed++;
+        OUT.println("  ok    " + what);
+    }
+
+    private static void fail(String what, String why) {
+        failed++;
+        OUT.println(String.format("  FAIL  %s: %s", what, why));
+    }
+}
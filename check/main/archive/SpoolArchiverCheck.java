@@ -0,0 +1,72 @@
+package main.archive;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import main.Checks;
+
+/**
+ * Checks that a restart only archives the receipts that were processed, and
+ * that an archived receipt restores to the same bytes.
+ */
+public class SpoolArchiverCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            restartOnlyArchivesProcessed();
+        });
+    }
+
+    private static void restartOnlyArchivesProcessed() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path archive = spool.resolveSibling(spool.getFileName() + "-archive");
+        Path processed = write(spool.resolve("d00001-001"), "processed receipt");
+        Path unprocessed = write(spool.resolve("d00002-001"), "unprocessed receipt");
+        Path reused = write(spool.resolve("d00003-001"), "first receipt");
+        Path notReceipt = write(spool.resolve("c00001"), "control file");
+
+        // Processed before the restart but not old enough to be archived yet
+        SpoolArchiver before = newArchiver(spool, archive);
+        before.archive(processed);
+        before.archive(reused);
+
+        // The name was reused by a new job that has not been processed
+        write(reused, "second receipt");
+        Files.setLastModifiedTime(reused, FileTime.fromMillis(Files.getLastModifiedTime(reused).toMillis() + 5000));
+
+        SpoolArchiver after = newArchiver(spool, archive);
+        after.start(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.exists(processed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        after.stop();
+
+        isTrue("processed receipt is archived after a restart", !Files.exists(processed));
+        isTrue("unprocessed receipt is left in the spool", Files.exists(unprocessed));
+        isTrue("receipt reusing a processed name is left in the spool", Files.exists(reused));
+        isTrue("files that are not receipts are left in the spool", Files.exists(notReceipt));
+
+        Path restored = Checks.tempDir("restored").resolve("d00001-001");
+        isTrue("archived receipt is found", after.restore("d00001-001", restored));
+        equal("restored receipt has the same bytes", "processed receipt",
+                new String(Files.readAllBytes(restored), StandardCharsets.UTF_8));
+        equal("unknown receipt is not found", false, after.restore("d00009-001", restored));
+    }
+
+    private static SpoolArchiver newArchiver(Path spool, Path archive) {
+        SpoolArchiver archiver = new SpoolArchiver(spool, archive);
+        archiver.setMinAgeMillis(0);
+        archiver.setBytesPerSecond(0);
+        return archiver;
+    }
+
+    private static Path write(Path file, String content) throws Exception {
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
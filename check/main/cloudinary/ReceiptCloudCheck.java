@@ -0,0 +1,32 @@
+package main.cloudinary;
+
+import static main.Checks.equal;
+import static main.Checks.fails;
+
+import main.Checks;
+import main.cloudinary.ReceiptCloud.UploadMode;
+
+/**
+ * Checks that the upload modes parse and that an account must be given.
+ */
+public class ReceiptCloudCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            modes();
+            account();
+        });
+    }
+
+    private static void modes() {
+        equal("upload mode names ignore case", UploadMode.LAZY, UploadMode.of("Lazy"));
+        equal("none is an upload mode", UploadMode.NONE, UploadMode.of("none"));
+        fails("unknown upload mode is rejected", IllegalArgumentException.class, () -> UploadMode.of("later"));
+        fails("missing upload mode is rejected", IllegalArgumentException.class, () -> UploadMode.of(null));
+    }
+
+    private static void account() {
+        fails("a missing api secret is rejected", NullPointerException.class,
+                () -> new ReceiptCloud("cloud", "key", null, null));
+    }
+}
@@ -0,0 +1,124 @@
+package main.config;
+
+import static main.Checks.equal;
+import static main.Checks.fails;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.Checks;
+
+/**
+ * Checks how the defaults, the properties file and the environment are layered,
+ * that the accounts must be set, and what a reload applies.
+ */
+public class ReceiptConfigCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            accounts();
+            layers();
+            reload();
+            rejectedReload();
+        });
+    }
+
+    private static void accounts() throws IOException {
+        ReceiptConfig none = new ReceiptConfig(null, Collections.<String, String>emptyMap());
+        equal("there is no default api email", null, none.get(ReceiptConfig.API_EMAIL));
+        equal("there is no default cloudinary key", null, none.get(ReceiptConfig.CLOUDINARY_API_KEY));
+        fails("missing accounts are rejected", IllegalStateException.class, none::requireAccounts);
+
+        Map<String, String> env = new HashMap<String, String>();
+        for (String key : ReceiptConfig.REQUIRED) {
+            env.put("RECEIPT_" + key.toUpperCase().replace('.', '_').replace('-', '_'), "set");
+        }
+        ReceiptConfig set = new ReceiptConfig(null, env);
+        set.requireAccounts();
+        equal("accounts from the environment are used", "set", set.get(ReceiptConfig.API_EMAIL));
+    }
+
+    private static void layers() throws IOException {
+        Path file = Checks.tempDir("config").resolve("receipt.properties");
+        write(file, "nfc.tag-hold-seconds = 10\napi.lease-size = 50\narchive.retention-days = many\n");
+
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("RECEIPT_API_LEASE_SIZE", "70");
+        ReceiptConfig config = new ReceiptConfig(file, env);
+
+        equal("the file overrides the default", 10, config.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS));
+        equal("the environment overrides the file", 70, config.getInt(ReceiptConfig.API_LEASE_SIZE));
+        equal("a bad number falls back to the default", 90, config.getInt(ReceiptConfig.ARCHIVE_RETENTION_DAYS));
+        equal("unset keys keep the default", "legacy", config.get(ReceiptConfig.NFC_TAG_FORMAT));
+    }
+
+    private static void reload() throws IOException {
+        Path file = Checks.tempDir("config").resolve("receipt.properties");
+        write(file, "nfc.tag-hold-seconds = 10\nserver.port = 9000\n");
+        ReceiptConfig config = new ReceiptConfig(file, Collections.<String, String>emptyMap());
+        AtomicInteger reloads = new AtomicInteger();
+        config.onReload(c -> reloads.incrementAndGet());
+
+        write(file, "nfc.tag-hold-seconds = 20\nserver.port = 9001\n");
+        config.reload();
+        equal("a reloadable key is applied", 20, config.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS));
+        equal("other keys wait for a restart", 9000, config.getInt(ReceiptConfig.SERVER_PORT));
+        equal("listeners are called once", 1, reloads.get());
+
+        write(file, "");
+        config.reload();
+        equal("an empty file keeps the current values", 20, config.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS));
+        equal("an empty file does not call the listeners", 1, reloads.get());
+
+        write(file, "server.port = 9000\n");
+        config.reload();
+        equal("a key removed from the file goes back to its default", 30,
+                config.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS));
+    }
+
+    private static void rejectedReload() throws IOException {
+        Path dir = Checks.tempDir("config");
+        Path file = dir.resolve("receipt.properties");
+        write(file, "nfc.tag-hold-seconds = 10\n");
+        ReceiptConfig config = new ReceiptConfig(file, Collections.<String, String>emptyMap());
+        AtomicInteger reloads = new AtomicInteger();
+        config.onReload(c -> {
+            if (c.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS) == 40)
+                throw new IllegalArgumentException("40 seconds is too long");
+        });
+        config.onReload(c -> reloads.incrementAndGet());
+
+        write(file, "nfc.tag-hold-seconds = ten\napi.lease-size = 30\n");
+        config.reload();
+        equal("a reloaded value that is not a number keeps the current value", 10,
+                config.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS));
+        equal("the rest of the reload is applied", 30, config.getInt(ReceiptConfig.API_LEASE_SIZE));
+
+        write(file, "nfc.script-dir = " + dir.resolve("missing") + "\napi.lease-size = 30\n");
+        config.reload();
+        equal("a script directory that does not exist is not applied",
+                "/home/pi/Desktop/Digital Receipt/raspberrypi/python/", config.get(ReceiptConfig.NFC_SCRIPT_DIR));
+
+        reloads.set(0);
+        write(file, "nfc.tag-hold-seconds = 40\napi.lease-size = 40\n");
+        config.reload();
+        equal("a rejected reload puts the previous values back", 30, config.getInt(ReceiptConfig.API_LEASE_SIZE));
+        equal("a listener that throws does not skip the others, which see the reload and the rollback", 2,
+                reloads.get());
+
+        write(file, "nfc.tag-hold-seconds = 20\napi.lease-size = 40\n");
+        config.reload();
+        equal("the next reload starts from the values in use", 40, config.getInt(ReceiptConfig.API_LEASE_SIZE));
+        equal("and is applied", 20, config.getInt(ReceiptConfig.NFC_TAG_HOLD_SECONDS));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
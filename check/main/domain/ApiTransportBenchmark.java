@@ -0,0 +1,140 @@
+package main.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import main.domain.ApiTransport.Kind;
+import main.domain.model.Receipt;
+
+/**
+ * Benchmark that compares the {@link ApiTransport} kinds against a stub backend
+ * running in the same JVM. Run it once per transport so the start up, class
+ * and memory numbers only include the transport that was picked.
+ *
+ * <pre>
+ * java -cp "jars/*:build/check-classes" main.domain.ApiTransportBenchmark webclient|http-client [requests] [concurrent]
+ * </pre>
+ */
+public class ApiTransportBenchmark {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    public static void main(String[] args) throws Exception {
+        Kind kind = Kind.of(args.length > 0 ? args[0] : "webclient");
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int concurrent = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        HttpServer stub = startStub();
+        String baseUrl = String.format("http://127.0.0.1:%d", stub.getAddress().getPort());
+
+        long authStart = System.nanoTime();
+        APIClient client = new APIClient(ApiTransport.create(kind, baseUrl), "bench@stub", "stub");
+        long firstRequestMillis = (System.nanoTime() - authStart) / 1_000_000;
+        long startupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        // Warm up before measuring the latency
+        for (int i = 0; i < 50; i++) {
+            client.insertReceipt("warmup_" + i);
+        }
+
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            client.insertReceipt("bench_" + i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        long burstStart = System.nanoTime();
+        List<CompletableFuture<Receipt>> burst = new ArrayList<CompletableFuture<Receipt>>();
+        for (int i = 0; i < concurrent; i++) {
+            burst.add(client.insertReceiptAsync("burst_" + i));
+        }
+        CompletableFuture.allOf(burst.toArray(new CompletableFuture<?>[0])).join();
+        long burstMillis = (System.nanoTime() - burstStart) / 1_000_000;
+
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long heapKb = (rt.totalMemory() - rt.freeMemory()) / 1024;
+
+        System.out.println(String.format("java %s, transport %s, %d requests, %d concurrent",
+                System.getProperty("java.version"), kind, requests, concurrent));
+        System.out.println(String.format("%-28s %d", "jvm start to auth ms", startupMillis));
+        System.out.println(String.format("%-28s %d", "first request ms", firstRequestMillis));
+        System.out.println(String.format("%-28s %d", "classes loaded",
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount()));
+        System.out.println(String.format("%-28s %d", "heap used after gc kb", heapKb));
+        System.out.println(String.format("%-28s %s", "rss kb", readRssKb()));
+        System.out.println(String.format("%-28s %.3f", "latency p50 ms", percentile(latencies, 0.50)));
+        System.out.println(String.format("%-28s %.3f", "latency p99 ms", percentile(latencies, 0.99)));
+        System.out.println(String.format("%-28s %d", "async burst ms", burstMillis));
+
+        stub.stop(0);
+        System.exit(0);
+    }
+
+    /**
+     * Starts a stub of the backend that answers the authenticate and receipt
+     * endpoints with fixed JSON.
+     */
+    private static HttpServer startStub() throws IOException {
+        // Without this the stub holds small responses back for the delayed ack
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/authenticate", exchange -> respond(exchange,
+                "{\"token\":\"bench-token\",\"createDate\":1638316800000,\"user\":null}"));
+        server.createContext("/api/receipt-app/receipt", exchange -> respond(exchange, String.format(
+                "{\"id\":%d,\"filePublicId\":\"receipt\",\"insertDate\":1638316800000}", NEXT_ID.getAndIncrement())));
+        server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "stub-backend");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1_000_000.0;
+    }
+
+    private static String readRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return line.substring(6).replace("kB", "").trim();
+            }
+        } catch (IOException e) {
+            // Not on linux
+        }
+        return "n/a";
+    }
+}
@@ -0,0 +1,98 @@
+package main.domain;
+
+import static main.Checks.equal;
+import static main.Checks.fails;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import main.Checks;
+import main.domain.ApiTransport.Kind;
+import main.domain.model.Receipt;
+import main.domain.model.ReceiptStatus;
+
+/**
+ * Sends the same requests over both transports to a stub backend, and checks
+ * that they send the same JSON and read the response the same way.
+ */
+public class ApiTransportCheck {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            kinds();
+            parity();
+        });
+    }
+
+    private static void kinds() {
+        equal("transport names ignore case and dashes", Kind.HTTP_CLIENT, Kind.of("HTTP-Client"));
+        equal("webclient is a transport", Kind.WEBCLIENT, Kind.of("webclient"));
+        fails("unknown transport is rejected", IllegalArgumentException.class, () -> Kind.of("okhttp"));
+        fails("missing transport is rejected", IllegalArgumentException.class, () -> Kind.of(null));
+    }
+
+    private static void parity() throws Exception {
+        List<String> requests = new CopyOnWriteArrayList<String>();
+        HttpServer stub = startStub(requests);
+        try {
+            String baseUrl = String.format("http://127.0.0.1:%d", stub.getAddress().getPort());
+            Receipt pending = new Receipt(7, "receipt_7_1234567890", ReceiptStatus.PENDING);
+
+            Receipt web = ApiTransport.create(Kind.WEBCLIENT, baseUrl)
+                    .send("POST", "/api/receipt-app/receipt", pending, "token", Receipt.class, TIMEOUT).get();
+            Receipt http = ApiTransport.create(Kind.HTTP_CLIENT, baseUrl)
+                    .send("POST", "/api/receipt-app/receipt", pending, "token", Receipt.class, TIMEOUT).get();
+
+            equal("both transports sent a request", 2, requests.size());
+            equal("both transports send the same request", requests.get(0), requests.get(1));
+            equal("the webclient reads the receipt", 7, web.getId());
+            equal("the http client reads the receipt", 7, http.getId());
+            equal("both transports read the same status", web.getStatus(), http.getStatus());
+
+            fails("the http client fails on an error status", Exception.class,
+                    () -> ApiTransport.create(Kind.HTTP_CLIENT, baseUrl)
+                            .send("GET", "/missing", null, "token", Receipt.class, TIMEOUT).get());
+        } finally {
+            stub.stop(0);
+        }
+    }
+
+    /**
+     * Starts a stub backend that records the method, path, token and body of
+     * every receipt request and answers with the receipt as uploaded.
+     */
+    private static HttpServer startStub(List<String> requests) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/receipt-app/receipt", exchange -> {
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            requests.add(String.format("%s %s %s %s", exchange.getRequestMethod(), exchange.getRequestURI(),
+                    exchange.getRequestHeaders().getFirst("Authorization"), body));
+            respond(exchange, 200, "{\"id\":7,\"filePublicId\":\"receipt_7_1234567890\",\"status\":\"UPLOADED\"}");
+        });
+        server.createContext("/missing", exchange -> respond(exchange, 404, ""));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
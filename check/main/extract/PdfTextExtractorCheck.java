@@ -0,0 +1,76 @@
+package main.extract;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import main.Checks;
+
+/**
+ * Reads the text of the synthetic receipts under {@code check/fixtures}, which
+ * are written by {@code check/fixtures/make_fixtures.py}, and of a few broken
+ * PDFs that must not throw.
+ */
+public class PdfTextExtractorCheck {
+    private static final PdfTextExtractor pdf = new PdfTextExtractor();
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            plain();
+            flate();
+            toUnicode();
+            scanned();
+            broken();
+        });
+    }
+
+    private static void plain() throws Exception {
+        List<String> lines = pdf.extractLines(Checks.fixture("receipt-plain.pdf"));
+        equal("every Td line is read", 13, lines.size());
+        equal("the first line is the merchant", "Corner Coffee Co.", lines.get(0));
+        equal("escaped parentheses are read", "Thank you (come again)!", lines.get(12));
+        equal("lines keep their order", Arrays.asList("Subtotal 13.75", "Sales Tax 0.96", "Total $14.71"),
+                lines.subList(7, 10));
+    }
+
+    private static void flate() throws Exception {
+        List<String> lines = pdf.extractLines(Checks.fixture("receipt-flate.pdf"));
+        equal("a wide TJ gap is a space and kerning is not", "Green Grocer", lines.get(0));
+        equal("T* starts a new line", "2021-11-30 09:05", lines.get(1));
+        equal("text moved along the line stays on it", "Lemons 3 @ 1.25 3.75", lines.get(3));
+        equal("the ' operator starts a new line", "SUBTOTAL 2,008.73", lines.get(5));
+        equal("the image stream is skipped", 9, lines.size());
+    }
+
+    private static void toUnicode() throws Exception {
+        List<String> lines = pdf.extractLines(Checks.fixture("receipt-tounicode.pdf"));
+        equal("two byte codes are mapped through ToUnicode",
+                Arrays.asList("Caf\u00e9 Ol\u00e9", "Espresso 2.80", "Total 2.80"), lines);
+    }
+
+    private static void scanned() throws Exception {
+        equal("a scanned receipt has no lines", Collections.emptyList(),
+                pdf.extractLines(Checks.fixture("receipt-scanned.pdf")));
+    }
+
+    private static void broken() {
+        equal("bytes that are not a PDF have no lines", Collections.emptyList(),
+                pdf.extractLines("not a pdf".getBytes(StandardCharsets.US_ASCII)));
+
+        String truncated = "1 0 obj\n<< /Length 40 >>\nstream\nBT (Cut off";
+        equal("a stream without endstream has no lines", Collections.emptyList(),
+                pdf.extractLines(truncated.getBytes(StandardCharsets.US_ASCII)));
+
+        String badFlate = "1 0 obj\n<< /Length 8 /Filter /FlateDecode >>\nstream\nBT notzip\nendstream\nendobj\n";
+        equal("a stream that does not inflate is skipped", Collections.emptyList(),
+                pdf.extractLines(badFlate.getBytes(StandardCharsets.US_ASCII)));
+
+        String unclosed = "1 0 obj\n<< /Length 20 >>\nstream\nBT (open [ <4142 Tj\nendstream\nendobj\n";
+        isTrue("unclosed strings do not throw", pdf.extractLines(unclosed.getBytes(StandardCharsets.US_ASCII))
+                .size() <= 1);
+    }
+}
@@ -0,0 +1,100 @@
+package main.extract;
+
+import static main.Checks.equal;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import main.Checks;
+import main.domain.model.ReceiptDetails;
+import main.domain.model.ReceiptLineItem;
+
+/**
+ * Turns the synthetic receipts under {@code check/fixtures} into details, and
+ * checks how single lines are read into line items, summary lines and dates.
+ */
+public class ReceiptExtractorCheck {
+    private static final ReceiptExtractor extractor = new ReceiptExtractor();
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            plain();
+            cards();
+            flate();
+            toUnicode();
+            scanned();
+            lines();
+        });
+    }
+
+    private static void plain() throws Exception {
+        ReceiptDetails details = extractor.extract(Checks.fixture("receipt-plain.pdf"));
+        equal("the merchant is the first line", "Corner Coffee Co.", details.getMerchant());
+        equal("the purchase date has its time", date(2021, 12, 6, 15, 42), details.getPurchaseDate());
+        equal("payment lines are not items", Arrays.asList("Latte x2 9.00", "Blueberry Muffin x1 3.25",
+                "Oat Milk x1 0.50", "Bottled Water x1 1.00"), items(details));
+        equal("the subtotal is read", new BigDecimal("13.75"), details.getSubtotal());
+        equal("the tax is read", new BigDecimal("0.96"), details.getTax());
+        equal("the total is read without the dollar sign", new BigDecimal("14.71"), details.getTotal());
+    }
+
+    private static void cards() throws Exception {
+        ReceiptDetails details = extractor.extract(Checks.fixture("receipt-cards.pdf"));
+        equal("items named like a payment before the total are items", Arrays.asList("Gift Card x1 25.00",
+                "Greeting Card x1 4.50", "Cash Register Tape x1 3.99"), items(details));
+        equal("the total is read", new BigDecimal("33.49"), details.getTotal());
+    }
+
+    private static void flate() throws Exception {
+        ReceiptDetails details = extractor.extract(Checks.fixture("receipt-flate.pdf"));
+        equal("the merchant is read from a TJ array", "Green Grocer", details.getMerchant());
+        equal("an iso date is read", date(2021, 11, 30, 9, 5), details.getPurchaseDate());
+        equal("a quantity with the unit price is read", Arrays.asList("Apples x1 3.98", "Lemons x3 3.75",
+                "Bread x1 2001.00"), items(details));
+        equal("balance due is the total", new BigDecimal("2169.43"), details.getTotal());
+    }
+
+    private static void toUnicode() throws Exception {
+        ReceiptDetails details = extractor.extract(Checks.fixture("receipt-tounicode.pdf"));
+        equal("the merchant keeps its accents", "Caf\u00e9 Ol\u00e9", details.getMerchant());
+        equal("a receipt without a date has none", null, details.getPurchaseDate());
+        equal("the item is read", Arrays.asList("Espresso x1 2.80"), items(details));
+    }
+
+    private static void scanned() throws Exception {
+        equal("a scanned receipt has no details", null, extractor.extract(Checks.fixture("receipt-scanned.pdf")));
+    }
+
+    private static void lines() {
+        equal("text without amounts is not a receipt", null, extractor.parse(Arrays.asList("Hello", "World")));
+
+        ReceiptDetails details = extractor.parse(Arrays.asList("Shop", "31/02/2021", "2 x Tea 1.50 3.00",
+                "3 x Scone 2.00 5.00", "Total 8.00", "Tax 0.40", "Tip 1.00", "Card Tax 0.40"));
+        equal("an impossible date is skipped", null, details.getPurchaseDate());
+        equal("a unit price that adds up is dropped, one that does not is kept",
+                Arrays.asList("Tea x2 3.00", "Scone 2.00 x3 5.00"), items(details));
+        equal("tax after the total is still read, a payment after it is not", new BigDecimal("0.40"),
+                details.getTax());
+        equal("lines after the total are not items", 2, details.getItems().size());
+
+        equal("12 am is midnight", date(2021, 1, 2, 0, 30),
+                extractor.parse(Arrays.asList("01/02/21 12:30 AM", "Total 1.00")).getPurchaseDate());
+    }
+
+    private static List<String> items(ReceiptDetails details) {
+        String[] items = new String[details.getItems().size()];
+        for (int i = 0; i < items.length; i++) {
+            ReceiptLineItem item = details.getItems().get(i);
+            items[i] = String.format("%s x%d %s", item.getDescription(), item.getQuantity(), item.getAmount());
+        }
+        return Arrays.asList(items);
+    }
+
+    private static Date date(int year, int month, int day, int hour, int minute) {
+        return Date.from(LocalDateTime.of(year, month, day, hour, minute).atZone(ZoneId.systemDefault()).toInstant());
+    }
+}
@@ -0,0 +1,283 @@
+package main.python;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import main.Checks;
+import main.python.NfcTagWriter.TagFormat;
+import main.watch.StallWatchdog;
+
+/**
+ * Runs {@link NfcTagWriter} against tag scripts that log their arguments
+ * instead of talking to the reader, and checks what each tag format sends.
+ */
+public class NfcTagWriterCheck {
+    private static final String PUBLIC_ID = "receipt_300_1234567890";
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "tag-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            formats();
+            stalledScriptIsRetried();
+            hungScriptIsRetried();
+            newerCutsTheHoldShort();
+            olderWaitsForTheHold();
+            olderWaiterIsSkipped();
+            cancelledHoldClears();
+            unfinishedWriteIsNotComplete();
+        });
+    }
+
+    private static void formats() throws IOException {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        NfcTagWriter writer = newWriter(tagLog);
+
+        writer.write(300, PUBLIC_ID, 1);
+        equal("legacy is the default and sends the id as 4 bytes", Arrays.asList("write 0 0 1 2c", "clear"),
+                readLog(tagLog));
+
+        writer.setTagFormat(TagFormat.V1);
+        writer.write(300, PUBLIC_ID, 2);
+        String v1 = "write " + String.join(" ", TagPayload.toHex(TagPayload.of(300, PUBLIC_ID).encode()));
+        equal("v1 sends the versioned payload", Arrays.asList(v1, "clear"), readLog(tagLog));
+
+        writer.write(300, 3);
+        equal("the id only write is always legacy", Arrays.asList("write 0 0 1 2c", "clear"), readLog(tagLog));
+
+        Checks.fails("a directory without the tag scripts is rejected", IllegalArgumentException.class,
+                () -> writer.setScriptDir(Checks.tempDir("no-scripts").toString()));
+        writer.write(300, 4);
+        equal("a rejected directory keeps the current scripts", Arrays.asList("write 0 0 1 2c", "clear"),
+                readLog(tagLog));
+
+        equal("tag format names", TagFormat.V1, TagFormat.of("v1"));
+        Checks.fails("unknown tag format is rejected", IllegalArgumentException.class, () -> TagFormat.of("v2"));
+    }
+
+    private static void stalledScriptIsRetried() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        Path scripts = writeScripts(tagLog);
+        String marker = quote(scripts.resolve("first-run"));
+
+        // The first run goes quiet as if it were stuck, the second one writes
+        Files.write(scripts.resolve("receipt__write_tag.py"), String.format("import os, sys, time%n"
+                + "if not os.path.exists('%s'):%n    open('%s', 'w').close()%n    time.sleep(30)%n"
+                + "open('%s', 'a').write('write ' + ' '.join(sys.argv[1:]) + '\\n')%nprint('written')%n", marker,
+                marker, quote(tagLog)).getBytes(StandardCharsets.UTF_8));
+
+        NfcTagWriter writer = new NfcTagWriter();
+        writer.setScriptDir(scripts.toString());
+        writer.setTagHoldMillis(0);
+        writer.setScriptTimeoutMillis(500);
+        StallWatchdog watchdog = new StallWatchdog();
+        writer.setWatchdog(watchdog);
+        watchdog.start(50);
+
+        long start = System.currentTimeMillis();
+        writer.write(300, 1);
+        watchdog.stop();
+
+        equal("a stalled script is killed and run again", Arrays.asList("write 0 0 1 2c", "clear"),
+                readLog(tagLog));
+        isTrue("the stalled script does not run to the end", System.currentTimeMillis() - start < 10000);
+        isTrue("the watchdog interrupt does not leak", !Thread.currentThread().isInterrupted());
+    }
+
+    private static void hungScriptIsRetried() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        Path scripts = writeScripts(tagLog);
+        String marker = quote(scripts.resolve("first-run"));
+
+        // The first run closes its output but never exits
+        Files.write(scripts.resolve("receipt__write_tag.py"), String.format("import os, sys, time%n"
+                + "if not os.path.exists('%s'):%n    open('%s', 'w').close()%n    os.close(1)%n    os.close(2)%n"
+                + "    time.sleep(30)%n"
+                + "open('%s', 'a').write('write ' + ' '.join(sys.argv[1:]) + '\\n')%nprint('written')%n", marker,
+                marker, quote(tagLog)).getBytes(StandardCharsets.UTF_8));
+
+        NfcTagWriter writer = new NfcTagWriter();
+        writer.setScriptDir(scripts.toString());
+        writer.setTagHoldMillis(0);
+        writer.setScriptTimeoutMillis(500);
+        writer.write(300, 1);
+
+        equal("a script that does not exit is killed and run again without a watchdog",
+                Arrays.asList("write 0 0 1 2c", "clear"), readLog(tagLog));
+    }
+
+    private static void newerCutsTheHoldShort() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        NfcTagWriter writer = newWriter(tagLog);
+        writer.setTagHoldMillis(2000);
+        writer.setTagMinHoldMillis(300);
+
+        // The newer receipt has the lower id, receipts are ranked by arrival
+        Future<Boolean> first = WRITERS.submit(() -> writer.write(2, 1));
+        waitForLine(tagLog, "write 0 0 0 2");
+        long newerAt = System.currentTimeMillis();
+        Future<Boolean> newer = WRITERS.submit(() -> writer.write(1, 2));
+
+        isTrue("the first receipt was written", first.get());
+        long held = System.currentTimeMillis() - newerAt;
+        isTrue("the first receipt is held for the minimum hold", held >= 250);
+        isTrue("a newer receipt cuts the rest of the hold short", held < 1500);
+        isTrue("the newer receipt is written", newer.get());
+        equal("the tag is not cleared between the two", Arrays.asList("write 0 0 0 2", "write 0 0 0 1", "clear"),
+                readLog(tagLog));
+    }
+
+    private static void olderWaitsForTheHold() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        NfcTagWriter writer = newWriter(tagLog);
+        writer.setTagHoldMillis(1000);
+        writer.setTagMinHoldMillis(0);
+
+        Future<Boolean> first = WRITERS.submit(() -> writer.write(3, 5));
+        waitForLine(tagLog, "write 0 0 0 3");
+        long olderAt = System.currentTimeMillis();
+        Future<Boolean> older = WRITERS.submit(() -> writer.write(5, 3));
+
+        isTrue("the first receipt was written", first.get());
+        isTrue("an older receipt does not cut the hold short", System.currentTimeMillis() - olderAt >= 900);
+        isTrue("the older receipt is written after the hold", older.get());
+        equal("both receipts get the whole hold",
+                Arrays.asList("write 0 0 0 3", "clear", "write 0 0 0 5", "clear"), readLog(tagLog));
+    }
+
+    private static void olderWaiterIsSkipped() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        NfcTagWriter writer = newWriter(tagLog);
+        writer.setTagHoldMillis(1500);
+        writer.setTagMinHoldMillis(0);
+
+        Future<Boolean> first = WRITERS.submit(() -> writer.write(10, 10));
+        waitForLine(tagLog, "write 0 0 0 a");
+        Future<Boolean> older = WRITERS.submit(() -> writer.write(20, 3));
+        Thread.sleep(200);
+        Future<Boolean> newest = WRITERS.submit(() -> writer.write(3, 20));
+
+        isTrue("the first receipt was written", first.get());
+        isTrue("the newest receipt is written", newest.get());
+        isTrue("an older receipt still waiting is skipped", !older.get());
+        equal("the skipped write is counted", 1, writer.getSkippedWrites());
+        equal("the skipped receipt never reaches the tag", Arrays.asList("write 0 0 0 a", "write 0 0 0 3", "clear"),
+                readLog(tagLog));
+    }
+
+    private static void cancelledHoldClears() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        NfcTagWriter writer = newWriter(tagLog);
+        writer.setTagHoldMillis(10000);
+
+        Future<Boolean> write = WRITERS.submit(() -> writer.write(7, 1));
+        waitForLine(tagLog, "write 0 0 0 7");
+        Thread.sleep(200);
+        write.cancel(true);
+        waitForLine(tagLog, "clear");
+        equal("a cancelled write still clears the tag", Arrays.asList("write 0 0 0 7", "clear"), readLog(tagLog));
+    }
+
+    private static void unfinishedWriteIsNotComplete() throws Exception {
+        Path tagLog = Files.createTempFile("tag", ".log");
+        Path scripts = writeScripts(tagLog);
+        Files.write(scripts.resolve("receipt__write_tag.py"), String.format("import sys%n"
+                + "open('%s', 'a').write('write ' + ' '.join(sys.argv[1:]) + '\\n')%nsys.exit(1)%n", quote(tagLog))
+                .getBytes(StandardCharsets.UTF_8));
+
+        NfcTagWriter writer = new NfcTagWriter();
+        writer.setScriptDir(scripts.toString());
+        writer.setTagHoldMillis(10000);
+        long start = System.currentTimeMillis();
+        isTrue("a write script that fails is not a written tag", !writer.write(7, 1));
+        isTrue("a failed write is not held", System.currentTimeMillis() - start < 5000);
+        equal("a failed write clears the tag", Arrays.asList("write 0 0 0 7", "clear"), readLog(tagLog));
+
+        // The interrupt lands while the script is running, so the script is not
+        // waited for and may not have written the whole payload
+        Path marker = scripts.resolve("started");
+        Files.write(scripts.resolve("receipt__write_tag.py"), String.format("import sys, time%n"
+                + "open('%s', 'w').close()%ntime.sleep(1)%n"
+                + "open('%s', 'a').write('write ' + ' '.join(sys.argv[1:]) + '\\n')%n", quote(marker), quote(tagLog))
+                .getBytes(StandardCharsets.UTF_8));
+        Future<Boolean> write = WRITERS.submit(() -> writer.write(8, 2));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Files.exists(marker) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        start = System.currentTimeMillis();
+        write.cancel(true);
+        waitForLine(tagLog, "clear");
+        isTrue("an interrupted write is not held", System.currentTimeMillis() - start < 5000);
+        equal("an interrupted write clears the tag", Arrays.asList("write 0 0 0 8", "clear"), readLog(tagLog));
+    }
+
+    /**
+     * Waits for the tag log to have the given line, without emptying it.
+     */
+    public static void waitForLine(Path tagLog, String line) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Files.readAllLines(tagLog, StandardCharsets.UTF_8).contains(line)) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException(String.format("'%s' was never written", line));
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Creates a writer that uses tag scripts which append what they were asked to
+     * do to the tag log, and does not hold the tag.
+     */
+    public static NfcTagWriter newWriter(Path tagLog) throws IOException {
+        NfcTagWriter writer = new NfcTagWriter();
+        writer.setScriptDir(writeScripts(tagLog).toString());
+        writer.setTagHoldMillis(0);
+        return writer;
+    }
+
+    /**
+     * Writes tag scripts that append what they were asked to do to the tag log.
+     *
+     * @return {@link Path} of the directory the scripts are in.
+     */
+    static Path writeScripts(Path tagLog) throws IOException {
+        Path scripts = Checks.tempDir("tag-scripts");
+        String log = quote(tagLog);
+        Files.write(scripts.resolve("receipt__write_tag.py"), String.format(
+                "import sys%nopen('%s', 'a').write('write ' + ' '.join(sys.argv[1:]) + '\\n')%nprint('written')%n",
+                log).getBytes(StandardCharsets.UTF_8));
+        Files.write(scripts.resolve("receipt__clear_tag.py"),
+                String.format("open('%s', 'a').write('clear\\n')%nprint('cleared')%n", log)
+                        .getBytes(StandardCharsets.UTF_8));
+        return scripts;
+    }
+
+    /**
+     * Quotes the path for a single quoted python string.
+     */
+    private static String quote(Path path) {
+        return path.toString().replace("\\", "\\\\").replace("'", "\\'");
+    }
+
+    /**
+     * Reads the tag log and empties it for the next write.
+     */
+    public static List<String> readLog(Path tagLog) throws IOException {
+        List<String> lines = Files.readAllLines(tagLog, StandardCharsets.UTF_8);
+        Files.write(tagLog, new byte[0]);
+        return lines;
+    }
+}
@@ -0,0 +1,110 @@
+package main.python;
+
+import static main.Checks.equal;
+import static main.Checks.fails;
+import static main.Checks.isTrue;
+
+import java.util.Arrays;
+
+import main.Checks;
+
+/**
+ * Checks that {@link TagPayload} decodes what it encodes, rejects corrupt
+ * payloads and still reads the legacy 4 byte format.
+ */
+public class TagPayloadCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            roundTrip();
+            varintBoundaries();
+            header();
+            corruption();
+            legacy();
+        });
+    }
+
+    private static void roundTrip() {
+        TagPayload same = TagPayload.decode(TagPayload.of(7, "receipt_7_1234567890").encode());
+        equal("sequence equal to id round trips", "receipt_7_1234567890", same.getPublicId());
+        equal("sequence equal to id keeps the id", 7, same.getReceiptId());
+        isTrue("sequence equal to id matches", same.matchesPublicId("receipt_7_1234567890"));
+
+        TagPayload other = TagPayload.decode(TagPayload.of(7, "receipt_5_0000000042").encode());
+        equal("sequence other than id round trips", "receipt_5_0000000042", other.getPublicId());
+
+        TagPayload hashed = TagPayload.decode(TagPayload.of(9, "custom-id").encode());
+        equal("unstructured public id is not stored", null, hashed.getPublicId());
+        isTrue("unstructured public id matches its hash", hashed.matchesPublicId("custom-id"));
+        isTrue("unstructured public id does not match another", !hashed.matchesPublicId("custom-id2"));
+
+        TagPayload bigKey = TagPayload.decode(TagPayload.of(3, "receipt_3_9999999999").encode());
+        equal("largest 10 digit key fits in 5 bytes", "receipt_3_9999999999", bigKey.getPublicId());
+    }
+
+    private static void varintBoundaries() {
+        int[] ids = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE, -1 };
+        for (int id : ids) {
+            byte[] data = TagPayload.of(id, "receipt_1_1000000000").encode();
+            TagPayload decoded = TagPayload.decode(data);
+            equal(String.format("id %d round trips", id), id, decoded.getReceiptId());
+            isTrue(String.format("id %d is never the legacy length", id), data.length != TagPayload.LEGACY_LENGTH);
+        }
+        equal("one byte varint for 127", 8, TagPayload.of(127, "receipt_127_1000000000").encode().length);
+        equal("two byte varint for 128", 9, TagPayload.of(128, "receipt_128_1000000000").encode().length);
+    }
+
+    private static void header() {
+        byte[] data = TagPayload.of(7, "receipt_7_1234567890").encode();
+        equal("version is the high nibble", TagPayload.VERSION, (data[0] & 0xFF) >>> 4);
+        equal("decoded version", TagPayload.VERSION, TagPayload.decode(data).getVersion());
+        isTrue("versioned payload is not legacy", !TagPayload.decode(data).isLegacy());
+    }
+
+    private static void corruption() {
+        byte[] data = TagPayload.of(300, "receipt_300_1234567890").encode();
+        for (int i = 0; i < data.length; i++) {
+            byte[] flipped = Arrays.copyOf(data, data.length);
+            flipped[i] ^= 0x10;
+            fails(String.format("flipped byte %d is rejected", i), IllegalArgumentException.class,
+                    () -> TagPayload.decode(flipped));
+        }
+
+        fails("truncated payload is rejected", IllegalArgumentException.class,
+                () -> TagPayload.decode(Arrays.copyOf(data, data.length - 2)));
+        fails("empty payload is rejected", IllegalArgumentException.class, () -> TagPayload.decode(new byte[0]));
+
+        byte[] version2 = Arrays.copyOf(data, data.length);
+        version2[0] = (byte) ((2 << 4) | (version2[0] & 0x0F));
+        version2[version2.length - 1] = (byte) crc8(version2, version2.length - 1);
+        fails("unknown version is rejected", IllegalArgumentException.class, () -> TagPayload.decode(version2));
+    }
+
+    private static void legacy() {
+        TagPayload legacy = TagPayload.decode(new byte[] { 0, 0, 0x01, 0x2C });
+        isTrue("4 bytes decode as legacy", legacy.isLegacy());
+        equal("legacy id", 300, legacy.getReceiptId());
+        equal("legacy encode round trips", 300, TagPayload.decode(TagPayload.of(300, null).encodeLegacy())
+                .getReceiptId());
+
+        // The tag script takes the same arguments it always has
+        equal("legacy script arguments", Arrays.asList("0", "0", "1", "2c"),
+                Arrays.asList(NfcTagWriter.formatIntToHex(300)));
+        equal("zero padded hex", Arrays.asList("00", "0a", "ff"),
+                Arrays.asList(TagPayload.toHex(new byte[] { 0, 10, (byte) 255 })));
+    }
+
+    /**
+     * Same CRC-8 as the payload, to build a valid payload of an unknown version.
+     */
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+}
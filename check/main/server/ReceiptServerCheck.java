@@ -0,0 +1,120 @@
+package main.server;
+
+import static main.Checks.equal;
+import static main.Checks.fails;
+import static main.Checks.isTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import main.Checks;
+
+/**
+ * Starts the receipt server on a free local port and fetches receipts from it
+ * over HTTP, checking the status for good, bad, expired and unknown links.
+ */
+public class ReceiptServerCheck {
+    private static final String SECRET = "check-secret";
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            secretRequired();
+            serves();
+        });
+    }
+
+    private static void secretRequired() {
+        fails("a server without a secret is rejected", NullPointerException.class,
+                () -> new ReceiptServer(new InetSocketAddress("127.0.0.1", 0), 1, null));
+    }
+
+    private static void serves() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path small = Files.write(spool.resolve("d00001-001"), "small receipt".getBytes(StandardCharsets.UTF_8));
+        byte[] largeBytes = new byte[300 * 1024];
+        for (int i = 0; i < largeBytes.length; i++) {
+            largeBytes[i] = (byte) i;
+        }
+        Path large = Files.write(spool.resolve("d00002-001"), largeBytes);
+
+        ReceiptServer server = new ReceiptServer(new InetSocketAddress("127.0.0.1", 0), 2, SECRET);
+        server.start();
+        try {
+            String base = String.format("http://127.0.0.1:%d", server.getPort());
+            server.register("receipt_1_1234567890", small);
+            server.register("receipt_2_1234567890", large);
+
+            Response ok = get(base + server.signedPath("receipt_1_1234567890"), "GET");
+            equal("a signed link is served", 200, ok.status);
+            equal("a small receipt is served from memory", "small receipt",
+                    new String(ok.body, StandardCharsets.UTF_8));
+
+            Files.delete(small);
+            equal("a small receipt is still served once the file is archived", 200,
+                    get(base + server.signedPath("receipt_1_1234567890"), "GET").status);
+
+            Response streamed = get(base + server.signedPath("receipt_2_1234567890"), "GET");
+            equal("a large receipt is served from its file", 200, streamed.status);
+            isTrue("a large receipt has the same bytes", Arrays.equals(largeBytes, streamed.body));
+
+            Response head = get(base + server.signedPath("receipt_2_1234567890"), "HEAD");
+            equal("head is answered", 200, head.status);
+            equal("head has no body", 0, head.body.length);
+
+            String path = server.signedPath("receipt_1_1234567890");
+            equal("a changed signature is forbidden", 403, get(base + path.replace("sig=", "sig=x"), "GET").status);
+            equal("a link for another receipt is forbidden", 403,
+                    get(base + path.replace("receipt_1_", "receipt_2_"), "GET").status);
+            equal("a link without a signature is forbidden", 403,
+                    get(base + "/receipt/receipt_1_1234567890?exp=9999999999", "GET").status);
+            equal("other methods are not allowed", 405, get(base + path, "POST").status);
+
+            server.setUrlTtlSeconds(-10);
+            equal("an expired link is gone", 410, get(base + server.signedPath("receipt_1_1234567890"), "GET").status);
+            server.setUrlTtlSeconds(300);
+
+            equal("a receipt that was never registered is not found", 404,
+                    get(base + server.signedPath("receipt_3_1234567890"), "GET").status);
+
+            ReceiptServer other = new ReceiptServer(new InetSocketAddress("127.0.0.1", 0), 1, "other-secret");
+            equal("a link signed with another secret is forbidden", 403,
+                    get(base + other.signedPath("receipt_1_1234567890"), "GET").status);
+            other.stop();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Response get(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        int status = connection.getResponseCode();
+        byte[] body = new byte[0];
+        if (status == 200) {
+            try (InputStream in = connection.getInputStream()) {
+                body = in.readAllBytes();
+            }
+        }
+        connection.disconnect();
+        return new Response(status, body);
+    }
+
+    private static class Response {
+        private final int status;
+        private final byte[] body;
+
+        private Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package main.watch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.watch.ReceiptPipeline.Mode;
+
+/**
+ * Benchmark that pushes a burst of simulated receipts through each
+ * {@link ReceiptPipeline} mode. The stages sleep for the given times in place of
+ * the Cloudinary upload, the database insert and the tag write so the numbers
+ * show how well each mode overlaps blocking I/O.
+ *
+ * <pre>
+ * java -cp "jars/*:build/check-classes" main.watch.PipelineBenchmark [receipts] [maxInFlight] [stageThreads]
+ * </pre>
+ */
+public class PipelineBenchmark {
+    private static final long UPLOAD_MILLIS = 400;
+    private static final long INSERT_MILLIS = 250;
+    private static final long TAG_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int receipts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int stageThreads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        System.out.println(String.format("java %s, %d receipts, %d in flight, %d stage threads",
+                System.getProperty("java.version"), receipts, maxInFlight, stageThreads));
+        System.out.println(String.format("%-10s %10s %14s %12s", "mode", "wall ms", "receipts/sec", "os threads"));
+
+        for (Mode mode : Mode.values()) {
+            // The serial mode takes over a second per receipt so keep it short
+            run(mode, mode == Mode.SERIAL ? Math.min(receipts, 10) : receipts, maxInFlight, stageThreads);
+        }
+    }
+
+    private static void run(Mode mode, int receipts, int maxInFlight, int stageThreads) throws Exception {
+        ReceiptPipeline pipeline = new ReceiptPipeline(mode, maxInFlight, stageThreads);
+        CountDownLatch done = new CountDownLatch(receipts);
+        ReentrantLock tag = new ReentrantLock();
+        int startThreads = Thread.activeCount();
+        int[] peakThreads = { 0 };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < receipts; i++) {
+            pipeline.submit("bench_" + i, scope -> {
+                try {
+                    scope.fork(() -> sleep(UPLOAD_MILLIS));
+                    Future<Boolean> insert = scope.fork(() -> sleep(INSERT_MILLIS));
+                    scope.join();
+                    insert.get();
+
+                    tag.lock();
+                    try {
+                        sleep(TAG_MILLIS);
+                        peakThreads[0] = Math.max(peakThreads[0], Thread.activeCount() - startThreads);
+                    } finally {
+                        tag.unlock();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+        pipeline.shutdown(5);
+
+        System.out.println(String.format("%-10s %10d %14.1f %12d", pipeline.getMode(), wallMillis,
+                receipts * 1000.0 / Math.max(1, wallMillis), peakThreads[0]));
+    }
+
+    private static boolean sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return true;
+    }
+}
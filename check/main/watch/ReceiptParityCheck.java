@@ -0,0 +1,255 @@
+package main.watch;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import main.config.ReceiptConfig;
+import main.python.TagPayload;
+
+/**
+ * End to end check that runs a receipt through {@link WatchDir} against a stub
+ * backend, a stub cloudinary and stub tag scripts, then prints what each of
+ * them saw. The output is the same on every run, so running this on the JVM and
+ * as a native image and comparing the output shows both process receipts the
+ * same way. Lines starting with {@code #} are measurements and are left out of
+ * the comparison. It exits with a non zero status if the tag was not written
+ * and cleared, so {@code check/run.sh} runs it with the other checks.
+ *
+ * <pre>
+ * java -cp ... main.watch.ReceiptParityCheck [receipt.pdf]
+ * </pre>
+ */
+public class ReceiptParityCheck {
+    private static final Pattern PUBLIC_ID = Pattern.compile("receipt_(\\d+)_\\d{10}");
+    private static final Pattern UPLOAD_PUBLIC_ID = Pattern
+            .compile("name=\"public_id\"\r\n(?:[^\r\n]+\r\n)*\r\n([^\r\n]*)");
+    private static final int RECEIPT_ID = 7;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private static final List<String> seen = new CopyOnWriteArrayList<String>();
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static volatile String publicId;
+
+    public static void main(String[] args) throws Exception {
+        Path receipt = Paths.get(args.length > 0 ? args[0] : "WatchDirectoryTest/dreceipt-example.pdf");
+        Path work = Files.createTempDirectory("receipt-parity");
+        Path spool = Files.createDirectory(work.resolve("spool"));
+        Path scripts = Files.createDirectory(work.resolve("scripts"));
+        Path tagLog = work.resolve("tag.log");
+        writeScripts(scripts, tagLog);
+
+        HttpServer stub = startStub();
+        String stubUrl = String.format("http://127.0.0.1:%d", stub.getAddress().getPort());
+
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("RECEIPT_API_URL", stubUrl);
+        env.put("RECEIPT_API_TRANSPORT", "http-client");
+        env.put("RECEIPT_API_EMAIL", "parity@stub");
+        env.put("RECEIPT_API_PASSWORD", "stub");
+        env.put("RECEIPT_CLOUDINARY_CLOUD_NAME", "parity");
+        env.put("RECEIPT_CLOUDINARY_API_KEY", "stub");
+        env.put("RECEIPT_CLOUDINARY_API_SECRET", "stub");
+        env.put("RECEIPT_CLOUDINARY_UPLOAD_PREFIX", stubUrl);
+        env.put("RECEIPT_NFC_SCRIPT_DIR", scripts.toString());
+        env.put("RECEIPT_NFC_TAG_HOLD_SECONDS", "0");
+        env.put("RECEIPT_NFC_TAG_FORMAT", "v1");
+        env.put("RECEIPT_ARCHIVE_DIR", work.resolve("archive").toString());
+        env.put("RECEIPT_PIPELINE_SPILL_FILE", work.resolve("spill.queue").toString());
+
+        WatchDir watchDir = new WatchDir(spool, new ReceiptConfig(null, env));
+        long startupMillis = Duration.between(processStart(), Instant.now()).toMillis();
+
+        Thread watcher = new Thread(watchDir::processEvents, "parity-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        long dropped = System.nanoTime();
+        Files.copy(receipt, spool.resolve("d-parity-receipt.pdf"));
+
+        List<String> tag = waitForTag(tagLog);
+        long receiptMillis = (System.nanoTime() - dropped) / 1_000_000;
+
+        List<String> transcript = new ArrayList<String>(seen);
+        transcript.addAll(tag);
+        Collections.sort(transcript);
+
+        PrintOut out = new PrintOut();
+        for (String line : transcript) {
+            out.println(line);
+        }
+        out.println(String.format("# startup ms %d", startupMillis));
+        out.println(String.format("# receipt ms %d", receiptMillis));
+        out.println(String.format("# peak rss kb %s", readStatus("VmHWM:")));
+
+        stub.stop(0);
+        System.exit(tag.size() == 2 ? 0 : 1);
+    }
+
+    /**
+     * Waits for the tag to be written and cleared, and turns the tag log into
+     * transcript lines.
+     */
+    private static List<String> waitForTag(Path tagLog) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        List<String> lines = Collections.emptyList();
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(tagLog)) {
+                lines = Files.readAllLines(tagLog, StandardCharsets.UTF_8);
+                if (lines.contains("clear"))
+                    break;
+            }
+            Thread.sleep(100);
+        }
+
+        List<String> tag = new ArrayList<String>();
+        for (String line : lines) {
+            if (!line.startsWith("write "))
+                continue;
+
+            String[] hex = line.substring(6).trim().split(" ");
+            byte[] data = new byte[hex.length];
+            for (int i = 0; i < hex.length; i++) {
+                data[i] = (byte) Integer.parseInt(hex[i], 16);
+            }
+
+            TagPayload payload = TagPayload.decode(data);
+            tag.add(String.format("tag write receipt=%d version=%d public-id-match=%b", payload.getReceiptId(),
+                    payload.getVersion(), payload.matchesPublicId(publicId)));
+        }
+        if (lines.contains("clear"))
+            tag.add("tag clear");
+        return tag;
+    }
+
+    /**
+     * Starts a stub of the backend and of the cloudinary upload api that record
+     * each request they get.
+     */
+    private static HttpServer startStub() throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+        server.createContext("/authenticate", exchange -> {
+            record(exchange, null);
+            respond(exchange, "{\"token\":\"parity-token\",\"createDate\":1638316800000,\"user\":null}");
+        });
+        server.createContext("/api/receipt-app/receipt/receipt-details/auto-increment", exchange -> {
+            record(exchange, null);
+            respond(exchange, String.valueOf(RECEIPT_ID));
+        });
+        server.createContext("/api/receipt-app/receipt", exchange -> {
+            String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+            Map<?, ?> json = mapper.readValue(body, TreeMap.class);
+            record(exchange, mapper.writeValueAsString(json));
+            respond(exchange, String.format("{\"id\":%d,\"filePublicId\":\"%s\",\"insertDate\":1638316800000}",
+                    RECEIPT_ID, json.get("filePublicId")));
+        });
+        server.createContext("/v1_1/", exchange -> {
+            String body = new String(readBody(exchange), StandardCharsets.ISO_8859_1);
+            Matcher m = UPLOAD_PUBLIC_ID.matcher(body);
+            String id = m.find() ? m.group(1) : "";
+            publicId = id;
+            record(exchange, String.format("public_id=%s pdf=%b", id, body.contains("%PDF-")));
+            respond(exchange, String.format("{\"public_id\":\"%s\",\"format\":\"png\"}", id));
+        });
+
+        server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "stub-backend");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static void record(HttpExchange exchange, String detail) throws IOException {
+        if (detail == null)
+            readBody(exchange);
+
+        String line = String.format("%s %s%s", exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                detail == null ? "" : " " + detail);
+        seen.add(PUBLIC_ID.matcher(line).replaceAll("receipt_$1_KEY"));
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Writes tag scripts that log the bytes they are given instead of talking to
+     * the reader.
+     */
+    private static void writeScripts(Path scripts, Path tagLog) throws IOException {
+        String log = tagLog.toString().replace("\\", "\\\\").replace("'", "\\'");
+        Files.write(scripts.resolve("receipt__write_tag.py"), String.format(
+                "import sys%nopen('%s', 'a').write('write ' + ' '.join(sys.argv[1:]) + '\\n')%nprint('written')%n",
+                log).getBytes(StandardCharsets.UTF_8));
+        Files.write(scripts.resolve("receipt__clear_tag.py"),
+                String.format("open('%s', 'a').write('clear\\n')%nprint('cleared')%n", log)
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Instant processStart() {
+        return ProcessHandle.current().info().startInstant().orElse(Instant.now());
+    }
+
+    private static String readStatus(String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith(field))
+                    return line.substring(field.length()).replace("kB", "").trim();
+            }
+        } catch (IOException e) {
+            // Not on linux
+        }
+        return "n/a";
+    }
+
+    /**
+     * Prints to the real console, {@link WatchDir} silences {@code System.out} so
+     * third party libraries do not print over the log.
+     */
+    private static class PrintOut {
+        private final PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true);
+
+        private void println(String line) {
+            out.println(line);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package main.watch;
+
+import static main.Checks.equal;
+import static main.Checks.fails;
+import static main.Checks.isTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import main.Checks;
+import main.watch.ReceiptPipeline.Mode;
+import main.watch.ReceiptPipeline.TaskScope;
+
+/**
+ * Checks that a failed stage cancels the rest of its receipt, that every
+ * receipt gives its slot back however it ends, and that the modes parse.
+ */
+public class ReceiptPipelineCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            modes();
+            serialScope();
+            platformScope();
+            slotsReleased();
+            rejected();
+        });
+    }
+
+    private static void modes() {
+        equal("mode names ignore case", Mode.VIRTUAL, Mode.of("Virtual"));
+        fails("unknown mode is rejected", IllegalArgumentException.class, () -> Mode.of("parallel"));
+    }
+
+    private static void serialScope() throws Exception {
+        ReceiptPipeline pipeline = new ReceiptPipeline(Mode.SERIAL, 4, 4);
+        AtomicBoolean laterRan = new AtomicBoolean();
+        Exception[] thrown = { null };
+
+        pipeline.submit("serial", scope -> {
+            try {
+                scope.fork(() -> {
+                    throw new IOException("upload failed");
+                });
+                scope.fork(() -> laterRan.getAndSet(true));
+                scope.join();
+            } catch (Exception e) {
+                thrown[0] = e;
+            }
+        });
+
+        equal("serial join throws the first failure", "upload failed", message(thrown[0]));
+        isTrue("serial stage forked after a failure never runs", !laterRan.get());
+        isTrue("serial failure does not interrupt the watcher", !Thread.interrupted());
+        equal("serial mode has one slot", 1, pipeline.getMaxInFlight());
+    }
+
+    private static void platformScope() throws Exception {
+        ReceiptPipeline pipeline = new ReceiptPipeline(Mode.PLATFORM, 2, 4);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Exception[] thrown = { null };
+
+        pipeline.submit("platform", scope -> {
+            try {
+                scope.fork(() -> {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                        throw e;
+                    }
+                    return true;
+                });
+                Future<Boolean> failing = scope.fork(() -> {
+                    throw new IOException("insert failed");
+                });
+                scope.join();
+                failing.get();
+            } catch (Exception e) {
+                thrown[0] = e;
+            } finally {
+                done.countDown();
+            }
+        });
+
+        isTrue("platform receipt finishes without waiting for the slow stage", done.await(5, TimeUnit.SECONDS));
+        equal("platform join throws the failure", "insert failed", message(thrown[0]));
+        isTrue("the slow stage is interrupted", waitFor(interrupted::get));
+        pipeline.shutdown(5);
+    }
+
+    private static void slotsReleased() throws Exception {
+        ReceiptPipeline pipeline = new ReceiptPipeline(Mode.PLATFORM, 2, 2);
+        CountDownLatch done = new CountDownLatch(6);
+
+        for (int i = 0; i < 6; i++) {
+            boolean fail = i % 2 == 0;
+            pipeline.submit("receipt " + i, scope -> {
+                try {
+                    if (fail)
+                        throw new IOException("failed on purpose");
+                    try (TaskScope inner = scope) {
+                        inner.fork(() -> true);
+                        inner.join();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        isTrue("more receipts than slots all run", done.await(5, TimeUnit.SECONDS));
+        isTrue("failed receipts give their slot back", waitFor(() -> pipeline.getInFlight() == 0));
+        pipeline.shutdown(5);
+    }
+
+    private static void rejected() throws Exception {
+        ReceiptPipeline pipeline = new ReceiptPipeline(Mode.PLATFORM, 2, 2);
+        pipeline.shutdown(5);
+
+        fails("submit after shutdown is rejected", RejectedExecutionException.class,
+                () -> pipeline.submit("late", scope -> {
+                }));
+        equal("a rejected receipt gives its slot back", 0, pipeline.getInFlight());
+    }
+
+    private static String message(Exception e) {
+        return e == null ? null : e.getMessage();
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean met();
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
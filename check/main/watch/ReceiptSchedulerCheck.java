@@ -0,0 +1,115 @@
+package main.watch;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import main.Checks;
+import main.watch.ReceiptPipeline.Mode;
+
+/**
+ * Checks that receipts are handed out newest first through the spill file, and
+ * that a spill file that can not be written never loses or blocks on a receipt.
+ */
+public class ReceiptSchedulerCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            newestFirst();
+            spillFails();
+            stopFinishesTheReceipt();
+        });
+    }
+
+    private static void newestFirst() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path spillFile = spool.resolveSibling(spool.getFileName() + "-spill.queue");
+        List<String> order = new CopyOnWriteArrayList<String>();
+        CountDownLatch done = new CountDownLatch(5);
+
+        ReceiptScheduler scheduler = new ReceiptScheduler(new ReceiptPipeline(Mode.SERIAL, 1, 1),
+                (receipt, arrival) -> scope -> {
+                    order.add(receipt.getFileName() + " " + arrival);
+                    done.countDown();
+                }, spillFile, 2);
+
+        List<Path> receipts = receipts(spool, 5);
+        for (Path receipt : receipts) {
+            scheduler.offer(receipt);
+        }
+        equal("only the queue bound is kept in memory", 2, scheduler.getQueued());
+        isTrue("a spilled receipt is still pending", scheduler.isPending(receipts.get(0)));
+
+        scheduler.start();
+        isTrue("every receipt is handed out", done.await(5, TimeUnit.SECONDS));
+        scheduler.stop();
+        equal("receipts are handed out newest first and keep their arrival through the spill file",
+                Arrays.asList("d5 5", "d4 4", "d3 3", "d2 2", "d1 1"), order);
+        isTrue("the spill file is emptied", !Files.exists(spillFile));
+    }
+
+    private static void spillFails() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path spillFile = spool.resolve("missing").resolve("spill.queue");
+        ReceiptScheduler scheduler = new ReceiptScheduler(new ReceiptPipeline(Mode.SERIAL, 1, 1),
+                (receipt, arrival) -> scope -> {
+                }, spillFile, 2);
+
+        List<Path> receipts = receipts(spool, 5);
+        Thread offering = new Thread(() -> {
+            for (Path receipt : receipts) {
+                scheduler.offer(receipt);
+            }
+        });
+        offering.setDaemon(true);
+        offering.start();
+        offering.join(5000);
+
+        isTrue("offer returns when the spill fails", !offering.isAlive());
+        equal("receipts that can not be spilled stay in memory", 5, scheduler.getQueued());
+        isTrue("the oldest receipt is still pending", scheduler.isPending(receipts.get(0)));
+    }
+
+    private static void stopFinishesTheReceipt() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path spillFile = spool.resolveSibling(spool.getFileName() + "-spill.queue");
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> finished = new CopyOnWriteArrayList<String>();
+
+        ReceiptScheduler scheduler = new ReceiptScheduler(new ReceiptPipeline(Mode.SERIAL, 1, 1),
+                (receipt, arrival) -> scope -> {
+                    started.countDown();
+                    Thread.sleep(300);
+                    finished.add(receipt.getFileName().toString());
+                }, spillFile, 10);
+
+        List<Path> receipts = receipts(spool, 2);
+        for (Path receipt : receipts) {
+            scheduler.offer(receipt);
+        }
+        scheduler.start();
+        isTrue("the newest receipt is started", started.await(5, TimeUnit.SECONDS));
+        scheduler.stop(5000);
+
+        equal("the receipt the serial dispatcher is on is left to finish", Arrays.asList("d2"), finished);
+        equal("the waiting receipt is spilled", Arrays.asList(receipts.get(0).toString()),
+                Files.readAllLines(spillFile));
+        isTrue("the spilled receipt is still pending", scheduler.isPending(receipts.get(0)));
+    }
+
+    private static List<Path> receipts(Path spool, int count) throws Exception {
+        List<Path> receipts = new ArrayList<Path>();
+        for (int i = 1; i <= count; i++) {
+            receipts.add(Files.createFile(spool.resolve("d" + i)));
+        }
+        return receipts;
+    }
+}
@@ -0,0 +1,72 @@
+package main.watch;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.Checks;
+import main.python.NfcTagWriter;
+import main.python.NfcTagWriterCheck;
+import main.watch.ReceiptPipeline.Mode;
+
+/**
+ * Runs the scheduler and the tag writer together. The scheduler hands a burst
+ * out newest first, so ids taken as receipts are dispatched run backwards, and
+ * the tag still has to go to the receipt that arrived last.
+ */
+public class ReceiptTagOrderCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            burst();
+        });
+    }
+
+    private static void burst() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path spillFile = spool.resolveSibling(spool.getFileName() + "-spill.queue");
+        Path tagLog = Files.createTempFile("tag", ".log");
+        NfcTagWriter writer = NfcTagWriterCheck.newWriter(tagLog);
+        writer.setTagHoldMillis(1000);
+        writer.setTagMinHoldMillis(100);
+
+        AtomicInteger nextId = new AtomicInteger(100);
+        CountDownLatch done = new CountDownLatch(3);
+        ReceiptPipeline pipeline = new ReceiptPipeline(Mode.PLATFORM, 3, 3);
+        ReceiptScheduler scheduler = new ReceiptScheduler(pipeline, (receipt, arrival) -> {
+            // The id is taken in dispatch order, and receipts dispatched later
+            // reach the tag later, as if their upload took longer
+            int id = nextId.getAndIncrement();
+            return scope -> {
+                try {
+                    Thread.sleep((id - 100) * 200L);
+                    writer.write(id, arrival);
+                } finally {
+                    done.countDown();
+                }
+            };
+        }, spillFile, 10);
+
+        // d1, d2 and d3 land before the dispatcher runs, so d3 gets id 100,
+        // d2 gets 101 and d1 gets 102
+        for (int i = 1; i <= 3; i++) {
+            scheduler.offer(Files.createFile(spool.resolve("d" + i)));
+        }
+        scheduler.start();
+
+        isTrue("every receipt is handled", done.await(10, TimeUnit.SECONDS));
+        scheduler.stop();
+        pipeline.shutdown(1);
+
+        equal("the newest print keeps the tag for the whole hold and the next newest goes after it",
+                Arrays.asList("write 0 0 0 64", "clear", "write 0 0 0 65", "clear"),
+                NfcTagWriterCheck.readLog(tagLog));
+        equal("only the oldest print is skipped", 1, writer.getSkippedWrites());
+    }
+}
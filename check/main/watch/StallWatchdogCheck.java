@@ -0,0 +1,81 @@
+package main.watch;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import main.Checks;
+import main.watch.StallWatchdog.Heartbeat;
+
+/**
+ * Checks when the watchdog steps in on a heartbeat, by calling its check with
+ * made up times instead of waiting.
+ */
+public class StallWatchdogCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            stallAndRecover();
+            abandon();
+            watchEnds();
+        });
+    }
+
+    private static void stallAndRecover() throws Exception {
+        StallWatchdog watchdog = new StallWatchdog();
+        Process sleeper = new ProcessBuilder("sleep", "30").start();
+        Heartbeat hb = watchdog.begin("stage", 1000);
+        hb.attach(sleeper);
+        long now = System.currentTimeMillis();
+
+        watchdog.check(now + 500);
+        equal("a stage inside its timeout is left alone", 0L, watchdog.getStallCount());
+
+        watchdog.check(now + 1500);
+        equal("a quiet stage is counted as stalled", 1L, watchdog.getStallCount());
+        isTrue("the stalled thread is interrupted", Thread.interrupted());
+        isTrue("the attached process is killed", sleeper.waitFor(5, TimeUnit.SECONDS));
+        isTrue("the heartbeat reports the stall", hb.isStalled());
+
+        hb.beat();
+        isTrue("a beat recovers the stage", !hb.isStalled());
+        watchdog.check(System.currentTimeMillis() + 500);
+        equal("a recovered stage is not stalled again", 1L, watchdog.getStallCount());
+        hb.end();
+    }
+
+    private static void abandon() {
+        StallWatchdog watchdog = new StallWatchdog();
+        AtomicBoolean hook = new AtomicBoolean();
+        Heartbeat tracker = watchdog.begin("receipt", 0);
+        tracker.onAbandon(() -> hook.set(true));
+        Heartbeat hb = watchdog.begin("stage", 1000);
+        long now = System.currentTimeMillis();
+
+        watchdog.check(now + 1500);
+        Thread.interrupted();
+        isTrue("a stall alone does not abandon the thread", !hook.get());
+
+        watchdog.check(now + 3000);
+        isTrue("a stage still stuck a timeout later abandons the thread", hook.get());
+        isTrue("every heartbeat on the thread is abandoned", tracker.isAbandoned() && hb.isAbandoned());
+        hb.end();
+        tracker.end();
+    }
+
+    private static void watchEnds() throws Exception {
+        StallWatchdog watchdog = new StallWatchdog();
+        equal("watch returns the result", "done", watchdog.watch("stage", 1000, () -> "done"));
+        watchdog.check(System.currentTimeMillis() + 5000);
+        equal("a finished stage is never reported", 0L, watchdog.getStallCount());
+
+        Checks.fails("watch passes the failure on", IllegalStateException.class,
+                () -> watchdog.watch("stage", 1000, () -> {
+                    throw new IllegalStateException("failed");
+                }));
+        watchdog.check(System.currentTimeMillis() + 5000);
+        equal("a failed stage is never reported", 0L, watchdog.getStallCount());
+    }
+}
@@ -0,0 +1,55 @@
+package main.watch;
+
+import static main.Checks.equal;
+import static main.Checks.isTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import main.Checks;
+
+/**
+ * Checks that failed uploads wait in the retry file until they go through,
+ * including across a restart.
+ */
+public class UploadRetryCheck {
+
+    public static void main(String[] args) {
+        Checks.run(() -> {
+            retries();
+        });
+    }
+
+    private static void retries() throws Exception {
+        Path spool = Checks.tempDir("spool");
+        Path retryFile = spool.resolveSibling(spool.getFileName() + "-upload-retry.queue");
+        Path first = Files.createFile(spool.resolve("d1"));
+        Path second = Files.createFile(spool.resolve("d2"));
+
+        UploadRetry failing = new UploadRetry(retryFile, (id, publicId, file) -> {
+            throw new IOException("cloudinary is down");
+        });
+        failing.add(1, "receipt_1_1234567890", first);
+        failing.add(2, "receipt_2_1234567890", second);
+        failing.retryAll();
+        equal("failed retries keep waiting", 2, failing.getWaiting());
+        equal("waiting uploads are kept in the retry file", 2, Files.readAllLines(retryFile).size());
+
+        Files.delete(second);
+        List<String> uploaded = new CopyOnWriteArrayList<String>();
+        UploadRetry restarted = new UploadRetry(retryFile, (id, publicId, file) -> {
+            uploaded.add(String.format("%d %s %s", id, publicId, file.getFileName()));
+        });
+        equal("waiting uploads are read back after a restart", 2, restarted.getWaiting());
+
+        restarted.retryAll();
+        equal("a retry uploads the receipt that is still in the spool",
+                Arrays.asList("1 receipt_1_1234567890 d1"), uploaded);
+        equal("nothing is left waiting", 0, restarted.getWaiting());
+        isTrue("the retry file is removed once it is empty", !Files.exists(retryFile));
+    }
+}
@@ -0,0 +1,33 @@
+#!/bin/sh
+#
+# Compiles the sources with the self checks under check/ and runs them. With
+# no arguments every *Check class is run, otherwise only the ones named.
+#
+#   check/run.sh [main.python.TagPayloadCheck ...]
+#
+set -e
+cd "$(dirname "$0")/.."
+
+rm -rf build/check-classes
+mkdir -p build/check-classes
+javac -Xlint:all -d build/check-classes -cp "jars/*" $(find src check -name '*.java')
+
+if [ $# -gt 0 ]; then
+    CHECKS="$*"
+else
+    CHECKS=$(cd check && find . -name '*Check.java' | sed 's|^\./||; s|\.java$||; s|/|.|g' | sort)
+fi
+
+FAILED=""
+for check in $CHECKS; do
+    echo "== $check"
+    if ! java -cp "jars/*:build/check-classes" -Dcheck.fixtures=check/fixtures "$check"; then
+        FAILED="$FAILED $check"
+    fi
+done
+
+if [ -n "$FAILED" ]; then
+    echo "FAIL:$FAILED" >&2
+    exit 1
+fi
+echo "OK"
@@ -0,0 +1,43 @@
+#!/bin/sh
+#
+# Builds a native image of the listener with GraalVM native-image (22.1 or
+# newer, JDK 17+). The Spring, reactor and Netty jars are left out of the image,
+# so it always talks to the backend with the http client transport.
+#
+#   native/build.sh [main-class] [output]
+#
+# NATIVE_SOURCES lists the source directories to compile, by default only src.
+#
+set -e
+cd "$(dirname "$0")/.."
+
+MAIN=${1:-FileListener}
+OUTPUT=${2:-build/receipt-reader}
+SOURCES=${NATIVE_SOURCES:-src}
+
+if ! command -v native-image >/dev/null 2>&1; then
+    echo "native-image not found, install GraalVM and put its bin directory on the PATH" >&2
+    exit 1
+fi
+
+NATIVE_JARS="jackson-annotations-2.9.0 jackson-core-2.9.6 jackson-databind-2.9.6 jackson-datatype-jdk8-2.9.6
+    jackson-datatype-jsr310-2.9.6 jackson-module-parameter-names-2.9.6 cloudinary-core-1.29.0
+    cloudinary-http44-1.29.0 httpclient-4.4 httpcore-4.4 httpmime-4.4 commons-codec-1.9 commons-lang3-3.1
+    commons-logging-1.2"
+
+CLASSPATH=build/classes
+for jar in $NATIVE_JARS; do
+    CLASSPATH="$CLASSPATH:jars/$jar.jar"
+done
+
+rm -rf build/classes
+mkdir -p build/classes
+javac --release 11 -nowarn -d build/classes -cp "jars/*" $(find $SOURCES -name '*.java')
+
+native-image --no-fallback \
+    -H:ConfigurationFileDirectories=native/config \
+    -H:+ReportExceptionStackTraces \
+    --enable-url-protocols=http,https \
+    -cp "$CLASSPATH" \
+    -o "$OUTPUT" \
+    "$MAIN"
@@ -0,0 +1,30 @@
+#!/bin/sh
+#
+# Runs the same receipt through the listener on the JVM and as a native image
+# with main.watch.ReceiptParityCheck from check/, fails if they did not handle
+# it the same way, and prints the start up time and peak memory of both.
+#
+#   native/verify.sh [receipt.pdf]
+#
+set -e
+cd "$(dirname "$0")/.."
+
+RECEIPT=${1:-WatchDirectoryTest/dreceipt-example.pdf}
+
+NATIVE_SOURCES="src check" native/build.sh main.watch.ReceiptParityCheck build/receipt-parity
+
+java -cp "jars/*:build/classes" main.watch.ReceiptParityCheck "$RECEIPT" > build/parity-jvm.txt
+build/receipt-parity "$RECEIPT" > build/parity-native.txt
+
+# Only the lines of the stubs are compared, the log and the measurements differ
+grep -v '^\[\|^#\|^$' build/parity-jvm.txt > build/parity-jvm.cmp
+grep -v '^\[\|^#\|^$' build/parity-native.txt > build/parity-native.cmp
+
+if ! diff build/parity-jvm.cmp build/parity-native.cmp; then
+    echo "FAIL: the native image handled the receipt differently" >&2
+    exit 1
+fi
+
+echo "OK: $(wc -l < build/parity-jvm.cmp) matching lines"
+echo "jvm:    $(grep '^#' build/parity-jvm.txt | tr '\n' ' ')"
+echo "native: $(grep '^#' build/parity-native.txt | tr '\n' ' ')"
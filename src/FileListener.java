@@ -1,6 +1,8 @@
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import main.config.ReceiptConfig;
 import main.watch.WatchDir;
 
 /**
@@ -16,13 +18,18 @@ public class FileListener {
 
     /**
      * Main class that will run the {@link WatchDir} class to listen to file changes
-     * in the folder that is passed in.
+     * in the folder that is passed in. The second argument is the optional path to
+     * the properties file, otherwise the {@code RECEIPT_CONFIG} environment
+     * variable is used.
      * 
      * @param args The arguements to run with the watch.
      * @throws IOException If the file can not be found.
      */
     public static void main(String[] args) throws Exception {
+        String configFile = args.length > 1 ? args[1] : System.getenv("RECEIPT_CONFIG");
+        Path configPath = configFile == null ? null : Paths.get(configFile);
+
         // register directory and process its events
-        new WatchDir(Paths.get(args[0])).processEvents();
+        new WatchDir(Paths.get(args[0]), new ReceiptConfig(configPath)).processEvents();
     }
 }
@@ -0,0 +1,92 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import main.archive.SpoolArchiver;
+import main.cloudinary.ReceiptCloud;
+import main.config.ReceiptConfig;
+import main.domain.APIClient;
+import main.domain.ApiTransport;
+import main.log.ConsoleLog;
+
+/**
+ * Main class that restores an archived receipt and uploads it to cloudinary
+ * again, for when the file on cloudinary was lost or never made it there. The
+ * receipt is read back from the archive of the given cups directory, uploaded
+ * under the given public id and the receipt is pointed at it, the same way a
+ * failed upload is retried. It uses the same properties file and environment as
+ * {@link FileListener} and can run while the reader is running.
+ */
+public class RestoreReceipt {
+    private static final ConsoleLog log = new ConsoleLog("RestoreReceipt");
+
+    /**
+     * Restores and re-uploads the receipt. Exits with a non zero status if the
+     * receipt is not in the archive or could not be uploaded.
+     *
+     * @param args The cups directory, the file name of the receipt, the receipt
+     *             id, the public id to upload it under and the optional path to
+     *             the properties file.
+     * @throws Exception If the archive can not be read or the receipt can not be
+     *                   updated.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            log.error("Usage: RestoreReceipt <cups-directory> <file-name> <receipt-id> <public-id> "
+                    + "[receipt.properties]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        String fileName = args[1];
+        int id = Integer.parseInt(args[2]);
+        String publicId = args[3];
+        String configFile = args.length > 4 ? args[4] : System.getenv("RECEIPT_CONFIG");
+        ReceiptConfig config = new ReceiptConfig(configFile == null ? null : Paths.get(configFile));
+        config.requireAccounts();
+
+        String configured = config.get(ReceiptConfig.ARCHIVE_DIR);
+        Path archiveDir = configured != null ? Paths.get(configured)
+                : dir.toAbsolutePath().resolveSibling(dir.getFileName() + "-archive");
+        Path restored = Files.createTempFile("restore-", "-" + fileName);
+        boolean done;
+        try {
+            done = restore(config, new SpoolArchiver(dir, archiveDir), fileName, id, publicId, restored);
+        } finally {
+            Files.deleteIfExists(restored);
+        }
+        System.exit(done ? 0 : 1);
+    }
+
+    /**
+     * Restores the receipt to a temporary file, uploads it and points the receipt
+     * at the upload.
+     *
+     * @return {@link Boolean} if the receipt was restored and uploaded.
+     */
+    private static boolean restore(ReceiptConfig config, SpoolArchiver archiver, String fileName, int id,
+            String publicId, Path restored) throws Exception {
+        if (!archiver.restore(fileName, restored)) {
+            log.error(String.format("%s is not in the archive", fileName));
+            return false;
+        }
+        log.info(String.format("Restored %s", fileName));
+
+        ReceiptCloud receiptCloud = new ReceiptCloud(config.get(ReceiptConfig.CLOUDINARY_CLOUD_NAME),
+                config.get(ReceiptConfig.CLOUDINARY_API_KEY), config.get(ReceiptConfig.CLOUDINARY_API_SECRET),
+                config.get(ReceiptConfig.CLOUDINARY_UPLOAD_PREFIX));
+        receiptCloud.setTimeoutMillis(config.getInt(ReceiptConfig.CLOUDINARY_TIMEOUT_SECONDS) * 1000);
+        if (!receiptCloud.upload(restored.toString(), publicId)) {
+            log.error(String.format("Could not upload %s as '%s'", fileName, publicId));
+            return false;
+        }
+        log.info(String.format("Uploaded %s as '%s'", fileName, publicId));
+
+        ApiTransport transport = ApiTransport.create(ApiTransport.Kind.of(config.get(ReceiptConfig.API_TRANSPORT)),
+                config.get(ReceiptConfig.API_URL));
+        APIClient apiclient = new APIClient(transport, config.get(ReceiptConfig.API_EMAIL),
+                config.get(ReceiptConfig.API_PASSWORD));
+        apiclient.markReceiptUploaded(id, publicId);
+        log.info(String.format("Receipt %d now points at '%s'", id, publicId));
+        return true;
+    }
+}
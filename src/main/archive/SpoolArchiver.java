@@ -0,0 +1,589 @@
+package main.archive;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import main.log.ConsoleLog;
+
+/**
+ * Background archiver that moves processed receipts out of the watched cups
+ * directory so that it stays small. Receipts are compressed into segment files
+ * that are partitioned by day, each partition having an index that maps the
+ * original file name to its place in a segment so it can be restored for a
+ * re-upload.
+ *
+ * <pre>
+ * archive/
+ *   2021-11-23/
+ *     index               name, segment, offset, length, size, crc, time
+ *     segment-0000.seg    deflated receipts appended one after another
+ * </pre>
+ *
+ * Only receipts that have been handed to {@link #archive(Path)} are ever
+ * archived. Each one is also recorded in the {@code processed} ledger so that
+ * after a restart the receipts that were processed but not archived yet can be
+ * told apart from ones that were never processed, which are left alone.
+ *
+ * Disk I/O is throttled to a fixed number of bytes per second and runs on a
+ * single low priority thread so it does not compete with the receipt pipeline.
+ */
+public class SpoolArchiver {
+    private static final ConsoleLog log = new ConsoleLog("SpoolArchiver");
+    private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
+    private static final String INDEX_FILE = "index";
+    private static final String LEDGER_FILE = "processed";
+    private static final String SEGMENT_FORMAT = "segment-%04d.seg";
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final Path spoolDir;
+    private final Path archiveDir;
+    private final BlockingQueue<Path> pending = new LinkedBlockingQueue<Path>();
+    private final ReentrantLock ledgerLock = new ReentrantLock();
+
+    private long bytesPerSecond = 256 * 1024;
+    private long maxSegmentBytes = 8 * 1024 * 1024;
+    private long minAgeMillis = TimeUnit.MINUTES.toMillis(10);
+    private int retentionDays = 90;
+    private long maxArchiveBytes = 2L * 1024 * 1024 * 1024;
+
+    private Predicate<Path> pendingCheck = p -> false;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates an archiver for the given spool directory that will write its
+     * segments to the archive directory.
+     *
+     * @param spoolDir   The watched cups directory.
+     * @param archiveDir The directory to store the segments in.
+     */
+    public SpoolArchiver(Path spoolDir, Path archiveDir) {
+        this.spoolDir = spoolDir;
+        this.archiveDir = archiveDir;
+    }
+
+    /**
+     * Starts the background thread. Receipts already sitting in the spool
+     * directory that the ledger says were processed get queued up straight away.
+     *
+     * @param intervalSeconds How often the archiver should run.
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (scheduler != null)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "spool-archiver");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        scheduler.execute(this::queueExistingReceipts);
+        scheduler.scheduleWithFixedDelay(this::runSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the background thread. Anything still queued will be picked up again
+     * from the spool directory on the next start.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Queues a processed receipt to be archived once it is older than the minimum
+     * age. The receipt is recorded in the ledger first so it is still archived if
+     * the reader restarts before then.
+     *
+     * @param receipt The path to the processed receipt.
+     */
+    public void archive(Path receipt) {
+        try {
+            LedgerEntry entry = new LedgerEntry(receipt.getFileName().toString(),
+                    Files.getLastModifiedTime(receipt).toMillis());
+            ledgerLock.lock();
+            try {
+                Files.createDirectories(archiveDir);
+                try (BufferedWriter writer = Files.newBufferedWriter(archiveDir.resolve(LEDGER_FILE),
+                        StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    writer.write(entry.toLine());
+                    writer.newLine();
+                }
+            } finally {
+                ledgerLock.unlock();
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Could not record %s as processed: %s", receipt.getFileName(), e.getMessage()));
+        }
+        pending.offer(receipt);
+    }
+
+    /**
+     * Restores an archived receipt so that it can be uploaded again. The newest
+     * partition that contains the file name wins.
+     *
+     * @param fileName The file name of the original receipt.
+     * @param target   Where to write the restored receipt.
+     * @return {@link Boolean} if the receipt was found and restored.
+     * @throws IOException If the segment can not be read or is corrupt.
+     */
+    public boolean restore(String fileName, Path target) throws IOException {
+        List<Path> partitions = listPartitions();
+        Collections.reverse(partitions);
+
+        for (Path partition : partitions) {
+            IndexEntry entry = findEntry(partition, fileName);
+            if (entry != null) {
+                restoreEntry(partition, entry, target);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setMaxSegmentBytes(long maxSegmentBytes) {
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    public void setMinAgeMillis(long minAgeMillis) {
+        this.minAgeMillis = minAgeMillis;
+    }
+
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public void setMaxArchiveBytes(long maxArchiveBytes) {
+        this.maxArchiveBytes = maxArchiveBytes;
+    }
+
+    /**
+     * Sets the check for receipts that have not been processed yet. They are left
+     * in the spool directory until they are.
+     *
+     * @param pending Returns true for receipts that are still being processed.
+     */
+    public void setPendingCheck(Predicate<Path> pending) {
+        this.pendingCheck = pending;
+    }
+
+    /**
+     * Runs one pass of the archiver, any error is printed so that the scheduled
+     * task does not get cancelled.
+     */
+    private void runSafely() {
+        try {
+            archivePending();
+            applyRetention();
+        } catch (Exception e) {
+            log.warn(String.format("Archive pass failed: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Queues the receipts that were left in the spool directory from a previous
+     * run, but only the ones the ledger says were processed and that have not
+     * changed since. Anything else has not been uploaded and is left where it is.
+     * The ledger is then rewritten with only the receipts that were queued.
+     */
+    private void queueExistingReceipts() {
+        ledgerLock.lock();
+        try {
+            Path ledger = archiveDir.resolve(LEDGER_FILE);
+            Set<LedgerEntry> processed = new HashSet<LedgerEntry>();
+            if (Files.exists(ledger)) {
+                for (String line : Files.readAllLines(ledger, StandardCharsets.UTF_8)) {
+                    LedgerEntry entry = LedgerEntry.parse(line);
+                    if (entry != null)
+                        processed.add(entry);
+                }
+            }
+
+            List<String> kept = new ArrayList<String>();
+            int unprocessed = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDir)) {
+                for (Path p : stream) {
+                    String name = p.getFileName().toString();
+                    if (name.isEmpty() || Character.toLowerCase(name.charAt(0)) != 'd' || !Files.isRegularFile(p))
+                        continue;
+
+                    LedgerEntry entry = new LedgerEntry(name, Files.getLastModifiedTime(p).toMillis());
+                    if (processed.contains(entry)) {
+                        kept.add(entry.toLine());
+                        pending.offer(p);
+                    } else {
+                        unprocessed++;
+                    }
+                }
+            }
+
+            if (Files.exists(ledger))
+                writeAtomically(ledger, kept);
+            if (unprocessed > 0)
+                log.warn(String.format("Left %d unprocessed receipts in the spool directory", unprocessed));
+        } catch (IOException e) {
+            log.warn(String.format("Could not scan spool directory: %s", e.getMessage()));
+        } finally {
+            ledgerLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the file with the given lines through a temporary file, so a crash
+     * never leaves it half written.
+     */
+    private static void writeAtomically(Path file, List<String> lines) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Archives every queued receipt that is old enough. Receipts that are too new
+     * or still being processed are put back on the queue for the next pass.
+     */
+    private void archivePending() throws IOException {
+        List<Path> notReady = new ArrayList<Path>();
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+
+        Path p;
+        try {
+            while ((p = pending.poll()) != null) {
+                if (!Files.exists(p))
+                    continue;
+
+                if (Files.getLastModifiedTime(p).toMillis() > cutoff || pendingCheck.test(p)) {
+                    notReady.add(p);
+                    continue;
+                }
+                archiveFile(p);
+            }
+        } finally {
+            pending.addAll(notReady);
+        }
+    }
+
+    /**
+     * Compresses the receipt onto the end of the current segment of its day
+     * partition, records it in the index and then removes the original.
+     *
+     * @param receipt The receipt to archive.
+     */
+    private void archiveFile(Path receipt) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(receipt);
+        LocalDate day = modified.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        Path partition = archiveDir.resolve(PARTITION_FORMAT.format(day));
+        Files.createDirectories(partition);
+
+        byte[] raw = readThrottled(receipt);
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed,
+                new Deflater(Deflater.BEST_COMPRESSION))) {
+            out.write(raw);
+        }
+
+        String segmentName = currentSegment(partition);
+        Path segment = partition.resolve(segmentName);
+        long offset;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            offset = channel.size();
+            writeThrottled(channel, compressed.toByteArray());
+            channel.force(true);
+        }
+
+        IndexEntry entry = new IndexEntry(receipt.getFileName().toString(), segmentName, offset, compressed.size(),
+                raw.length, crc.getValue(), modified.toMillis());
+        try (BufferedWriter writer = Files.newBufferedWriter(partition.resolve(INDEX_FILE), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC)) {
+            writer.write(entry.toLine());
+            writer.newLine();
+        }
+
+        Files.delete(receipt);
+        log.info(String.format("Archived %s (%d -> %d bytes)", entry.name, entry.size, entry.length));
+    }
+
+    /**
+     * Removes whole day partitions that are past the retention days, and then the
+     * oldest partitions until the archive is back under its size limit.
+     */
+    private void applyRetention() throws IOException {
+        List<Path> partitions = listPartitions();
+        LocalDate oldest = LocalDate.now().minusDays(retentionDays);
+
+        long total = 0;
+        List<Long> sizes = new ArrayList<Long>();
+        for (Path partition : partitions) {
+            long size = directorySize(partition);
+            sizes.add(size);
+            total += size;
+        }
+
+        for (int i = 0; i < partitions.size(); i++) {
+            Path partition = partitions.get(i);
+            boolean expired = LocalDate.parse(partition.getFileName().toString(), PARTITION_FORMAT).isBefore(oldest);
+            boolean overLimit = total > maxArchiveBytes && i < partitions.size() - 1;
+            if (!expired && !overLimit)
+                break;
+
+            deleteDirectory(partition);
+            total -= sizes.get(i);
+            log.info(String.format("Removed archive partition %s", partition.getFileName()));
+        }
+    }
+
+    /**
+     * Gets the name of the segment that new receipts should be appended to,
+     * rolling over to a new segment once the current one is full.
+     */
+    private String currentSegment(Path partition) throws IOException {
+        int index = 0;
+        while (true) {
+            String name = String.format(SEGMENT_FORMAT, index);
+            Path segment = partition.resolve(name);
+            if (!Files.exists(segment) || Files.size(segment) < maxSegmentBytes)
+                return name;
+            index++;
+        }
+    }
+
+    private void restoreEntry(Path partition, IndexEntry entry, Path target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.length);
+        try (FileChannel channel = FileChannel.open(partition.resolve(entry.segment), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0)
+                    throw new IOException(String.format("Segment %s is truncated", entry.segment));
+            }
+        }
+
+        byte[] raw;
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(buffer.array()))) {
+            raw = in.readAllBytes();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        if (raw.length != entry.size || crc.getValue() != entry.crc)
+            throw new IOException(String.format("Archived receipt %s is corrupt", entry.name));
+
+        try (OutputStream out = Files.newOutputStream(target)) {
+            out.write(raw);
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.time));
+    }
+
+    private IndexEntry findEntry(Path partition, String fileName) throws IOException {
+        Path index = partition.resolve(INDEX_FILE);
+        if (!Files.exists(index))
+            return null;
+
+        IndexEntry found = null;
+        try (Stream<String> lines = Files.lines(index, StandardCharsets.UTF_8)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                IndexEntry entry = IndexEntry.parse(line);
+                if (entry != null && entry.name.equals(fileName))
+                    found = entry;
+            }
+        }
+        return found;
+    }
+
+    private List<Path> listPartitions() throws IOException {
+        List<Path> partitions = new ArrayList<Path>();
+        if (!Files.isDirectory(archiveDir))
+            return partitions;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(archiveDir, "????-??-??")) {
+            for (Path p : stream) {
+                if (Files.isDirectory(p))
+                    partitions.add(p);
+            }
+        }
+        Collections.sort(partitions);
+        return partitions;
+    }
+
+    private byte[] readThrottled(Path file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Files.size(file), Integer.MAX_VALUE));
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                out.write(chunk, 0, n);
+                throttle(n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void writeThrottled(FileChannel channel, byte[] data) throws IOException {
+        for (int off = 0; off < data.length; off += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, data.length - off);
+            ByteBuffer buffer = ByteBuffer.wrap(data, off, n);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            throttle(n);
+        }
+    }
+
+    /**
+     * Sleeps long enough that the given number of bytes stays under the bytes
+     * per second limit.
+     */
+    private void throttle(int bytes) throws IOException {
+        if (bytesPerSecond <= 0)
+            return;
+        try {
+            Thread.sleep(bytes * 1000L / bytesPerSecond);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Archiver interrupted");
+        }
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                size += Files.size(p);
+            }
+        }
+        return size;
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                Files.delete(p);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * A single line of the processed ledger. The modified time is kept so that a
+     * new receipt that reuses the name of a processed one is not mistaken for it.
+     */
+    private static class LedgerEntry {
+        private final String name;
+        private final long time;
+
+        private LedgerEntry(String name, long time) {
+            this.name = name;
+            this.time = time;
+        }
+
+        private String toLine() {
+            return String.join("\t", name, Long.toString(time));
+        }
+
+        private static LedgerEntry parse(String line) {
+            String[] parts = line.split("\t");
+            if (parts.length != 2)
+                return null;
+            try {
+                return new LedgerEntry(parts[0], Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LedgerEntry))
+                return false;
+            LedgerEntry other = (LedgerEntry) o;
+            return name.equals(other.name) && time == other.time;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, time);
+        }
+    }
+
+    /**
+     * A single line of a partition index.
+     */
+    private static class IndexEntry {
+        private final String name;
+        private final String segment;
+        private final long offset;
+        private final long length;
+        private final long size;
+        private final long crc;
+        private final long time;
+
+        private IndexEntry(String name, String segment, long offset, long length, long size, long crc, long time) {
+            this.name = name;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.crc = crc;
+            this.time = time;
+        }
+
+        private String toLine() {
+            return String.join("\t", name, segment, Long.toString(offset), Long.toString(length), Long.toString(size),
+                    Long.toString(crc), Long.toString(time));
+        }
+
+        private static IndexEntry parse(String line) {
+            String[] parts = line.split("\t");
+            if (parts.length != 7)
+                return null;
+            try {
+                return new IndexEntry(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                        Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package main.cloudinary;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 
 import com.cloudinary.Cloudinary;
 import com.cloudinary.utils.ObjectUtils;
 
+import main.log.ConsoleLog;
+
 /**
  * File uploader class that will upload the receipts to cloudinary so that they
  * can be stored in the S3 bucket and be retrieved by the mobile app.
@@ -13,19 +18,73 @@ import com.cloudinary.utils.ObjectUtils;
  * @since Novemeer 4, 2021
  */
 public class ReceiptCloud {
-    private final String CLOUD_NAME = "hwxm9amax";
-    private final String API_KEY = "656249988229398";
-    private final String API_SECRET = "NO6Ydnn_UIFwAzanYJL3Xm0xkb8";
+    private static final ConsoleLog log = new ConsoleLog("ReceiptCloud");
+
+    /**
+     * When the receipt file is uploaded. Receipts without structured details are
+     * always uploaded eagerly since the file is all the app has to show.
+     */
+    public enum UploadMode {
+        /** Upload before the tag is written. */
+        EAGER,
+        /** Upload after the tag is written. */
+        LAZY,
+        /** Do not upload the file. */
+        NONE;
+
+        public static UploadMode of(String value) {
+            for (UploadMode m : values())
+                if (m.name().equalsIgnoreCase(value))
+                    return m;
+            throw new IllegalArgumentException(
+                    String.format("Unknown upload mode '%s', expected eager, lazy or none", value));
+        }
+    }
 
     private Cloudinary cloud;
+    private volatile int timeoutMillis = 60000;
 
     /**
-     * Default constructor for when the class is invoked, then the cloudinary can be
+     * Constructor for the given cloudinary account, then the cloudinary can be
      * initialized and used to upload files.
+     * 
+     * @param cloudName The cloud name of the account.
+     * @param apiKey    The api key of the account.
+     * @param apiSecret The api secret of the account.
+     */
+    public ReceiptCloud(String cloudName, String apiKey, String apiSecret) {
+        this(cloudName, apiKey, apiSecret, null);
+    }
+
+    /**
+     * Constructor for the given cloudinary account that uploads to the given api
+     * host instead of the cloudinary one.
+     * 
+     * @param cloudName    The cloud name of the account.
+     * @param apiKey       The api key of the account.
+     * @param apiSecret    The api secret of the account.
+     * @param uploadPrefix The base url of the upload api, null for cloudinary.
+     */
+    public ReceiptCloud(String cloudName, String apiKey, String apiSecret, String uploadPrefix) {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("cloud_name", Objects.requireNonNull(cloudName, "cloudName"));
+        config.put("api_key", Objects.requireNonNull(apiKey, "apiKey"));
+        config.put("api_secret", Objects.requireNonNull(apiSecret, "apiSecret"));
+        config.put("secure", true);
+        if (uploadPrefix != null)
+            config.put("upload_prefix", uploadPrefix);
+        cloud = new Cloudinary(config);
+    }
+
+    /**
+     * Sets how long an upload can wait to connect, or go without sending or
+     * receiving anything, before it fails. This is what ends an upload stuck on a
+     * dead connection, interrupting the thread does not.
+     * 
+     * @param timeoutMillis The timeout in milliseconds, 0 for no timeout.
      */
-    public ReceiptCloud() {
-        cloud = new Cloudinary(ObjectUtils.asMap("cloud_name", CLOUD_NAME, "api_key", API_KEY, "api_secret", API_SECRET,
-                "secure", true));
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
     }
 
     /**
@@ -33,13 +92,19 @@ public class ReceiptCloud {
      * uploaded then it will print a warnring saying the file can not be uploaded,
      * otherwise it will print a success message.
      * 
-     * @param file
+     * @param file     The path of the file to upload.
+     * @param publicId The public id to store the file under.
+     * @return {@link Boolean} if the file was uploaded.
      */
-    public void upload(String file, String publicId) {
+    public boolean upload(String file, String publicId) {
         try {
-            cloud.uploader().upload(file, ObjectUtils.asMap("public_id", publicId, "format", "png"));
+            int timeout = timeoutMillis;
+            cloud.uploader().upload(file, ObjectUtils.asMap("public_id", publicId, "format", "png", "timeout", timeout,
+                    "connect_timeout", timeout, "connection_request_timeout", timeout));
+            return true;
         } catch (IOException e) {
-            System.out.println("WARN: Cloudinary Upload Failed!");
+            log.warn(String.format("Cloudinary Upload Failed! %s", e.getMessage()));
+            return false;
         }
     }
 }
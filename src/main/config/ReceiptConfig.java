@@ -0,0 +1,504 @@
+package main.config;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import main.log.ConsoleLog;
+
+/**
+ * Runtime configuration for the reader. Values are layered, the built in
+ * defaults are overridden by the properties file, which is overridden by the
+ * environment. The environment variable for a key is the key in upper case with
+ * dots and dashes replaced by underscores and prefixed with {@code RECEIPT_},
+ * so {@code nfc.tag-hold-seconds} becomes {@code RECEIPT_NFC_TAG_HOLD_SECONDS}.
+ *
+ * The account keys in {@link #REQUIRED} have no default and must be set.
+ *
+ * When the properties file changes the keys in {@link #RELOADABLE} are applied
+ * straight away and the reload listeners are called. Any other key that changed
+ * is ignored until the next restart. The file is only read once it has stopped
+ * changing, and an empty file is ignored, so an editor that saves in place does
+ * not reset keys to their defaults halfway through a save. A reloaded value that
+ * is not a number, or a script directory that does not exist, is not applied,
+ * and if a listener rejects the reload the previous values are put back.
+ */
+public class ReceiptConfig {
+    private static final ConsoleLog log = new ConsoleLog("ReceiptConfig");
+    public static final String API_URL = "api.url";
+    public static final String API_EMAIL = "api.email";
+    public static final String API_PASSWORD = "api.password";
+    public static final String API_TRANSPORT = "api.transport";
+    public static final String API_TIMEOUT_SECONDS = "api.timeout-seconds";
+    public static final String API_LEASE_SIZE = "api.lease-size";
+    public static final String API_LEASE_REFILL_BELOW = "api.lease-refill-below";
+
+    public static final String CLOUDINARY_CLOUD_NAME = "cloudinary.cloud-name";
+    public static final String CLOUDINARY_API_KEY = "cloudinary.api-key";
+    public static final String CLOUDINARY_API_SECRET = "cloudinary.api-secret";
+    public static final String CLOUDINARY_UPLOAD_PREFIX = "cloudinary.upload-prefix";
+    public static final String CLOUDINARY_UPLOAD_MODE = "cloudinary.upload-mode";
+    public static final String CLOUDINARY_TIMEOUT_SECONDS = "cloudinary.timeout-seconds";
+    public static final String CLOUDINARY_RETRY_FILE = "cloudinary.retry-file";
+    public static final String CLOUDINARY_RETRY_INTERVAL_SECONDS = "cloudinary.retry-interval-seconds";
+
+    public static final String EXTRACT_ENABLED = "extract.enabled";
+
+    public static final String NFC_SCRIPT_DIR = "nfc.script-dir";
+    public static final String NFC_TAG_HOLD_SECONDS = "nfc.tag-hold-seconds";
+    public static final String NFC_TAG_MIN_HOLD_SECONDS = "nfc.tag-min-hold-seconds";
+    public static final String NFC_SCRIPT_TIMEOUT_SECONDS = "nfc.script-timeout-seconds";
+    public static final String NFC_TAG_FORMAT = "nfc.tag-format";
+
+    public static final String PIPELINE_EXECUTOR = "pipeline.executor";
+    public static final String PIPELINE_MAX_IN_FLIGHT = "pipeline.max-in-flight";
+    public static final String PIPELINE_STAGE_THREADS = "pipeline.stage-threads";
+    public static final String PIPELINE_QUEUE_BOUND = "pipeline.queue-bound";
+    public static final String PIPELINE_SPILL_FILE = "pipeline.spill-file";
+    public static final String PIPELINE_TAG_FIRST = "pipeline.tag-first";
+
+    public static final String ARCHIVE_DIR = "archive.dir";
+    public static final String ARCHIVE_INTERVAL_SECONDS = "archive.interval-seconds";
+    public static final String ARCHIVE_MIN_AGE_MINUTES = "archive.min-age-minutes";
+    public static final String ARCHIVE_BYTES_PER_SECOND = "archive.bytes-per-second";
+    public static final String ARCHIVE_MAX_SEGMENT_BYTES = "archive.max-segment-bytes";
+    public static final String ARCHIVE_RETENTION_DAYS = "archive.retention-days";
+    public static final String ARCHIVE_MAX_BYTES = "archive.max-bytes";
+
+    public static final String WATCHDOG_INTERVAL_SECONDS = "watchdog.interval-seconds";
+    public static final String WATCHDOG_STAGE_TIMEOUT_SECONDS = "watchdog.stage-timeout-seconds";
+
+    public static final String SERVER_ENABLED = "server.enabled";
+    public static final String SERVER_PORT = "server.port";
+    public static final String SERVER_SECRET = "server.secret";
+    public static final String SERVER_BASE_URL = "server.base-url";
+    public static final String SERVER_URL_TTL_SECONDS = "server.url-ttl-seconds";
+    public static final String SERVER_CACHE_ENTRIES = "server.cache-entries";
+    public static final String SERVER_CACHE_BYTES = "server.cache-bytes";
+
+    // One group of keys per line, add new keys to the end of their group
+    private static final List<String> KEYS = Arrays.asList(
+            API_URL, API_EMAIL, API_PASSWORD, API_TRANSPORT, API_TIMEOUT_SECONDS, API_LEASE_SIZE,
+            API_LEASE_REFILL_BELOW,
+            CLOUDINARY_CLOUD_NAME, CLOUDINARY_API_KEY, CLOUDINARY_API_SECRET, CLOUDINARY_UPLOAD_PREFIX,
+            CLOUDINARY_UPLOAD_MODE, CLOUDINARY_TIMEOUT_SECONDS, CLOUDINARY_RETRY_FILE,
+            CLOUDINARY_RETRY_INTERVAL_SECONDS,
+            EXTRACT_ENABLED,
+            NFC_SCRIPT_DIR, NFC_TAG_HOLD_SECONDS, NFC_SCRIPT_TIMEOUT_SECONDS, NFC_TAG_FORMAT,
+            NFC_TAG_MIN_HOLD_SECONDS,
+            PIPELINE_EXECUTOR, PIPELINE_MAX_IN_FLIGHT, PIPELINE_STAGE_THREADS, PIPELINE_QUEUE_BOUND,
+            PIPELINE_SPILL_FILE, PIPELINE_TAG_FIRST,
+            ARCHIVE_DIR, ARCHIVE_INTERVAL_SECONDS, ARCHIVE_MIN_AGE_MINUTES, ARCHIVE_BYTES_PER_SECOND,
+            ARCHIVE_MAX_SEGMENT_BYTES, ARCHIVE_RETENTION_DAYS, ARCHIVE_MAX_BYTES,
+            WATCHDOG_INTERVAL_SECONDS, WATCHDOG_STAGE_TIMEOUT_SECONDS,
+            SERVER_ENABLED, SERVER_PORT, SERVER_SECRET, SERVER_BASE_URL, SERVER_URL_TTL_SECONDS,
+            SERVER_CACHE_ENTRIES, SERVER_CACHE_BYTES);
+
+    /**
+     * Account keys that have no default, the reader will not start without them.
+     */
+    public static final List<String> REQUIRED = Collections.unmodifiableList(Arrays.asList(
+            API_EMAIL, API_PASSWORD,
+            CLOUDINARY_CLOUD_NAME, CLOUDINARY_API_KEY, CLOUDINARY_API_SECRET));
+
+    /**
+     * Keys that are safe to change while receipts are being processed.
+     */
+    public static final Set<String> RELOADABLE = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            API_TIMEOUT_SECONDS, API_LEASE_SIZE, API_LEASE_REFILL_BELOW,
+            CLOUDINARY_UPLOAD_MODE, CLOUDINARY_TIMEOUT_SECONDS,
+            EXTRACT_ENABLED,
+            NFC_SCRIPT_DIR, NFC_TAG_HOLD_SECONDS, NFC_SCRIPT_TIMEOUT_SECONDS, NFC_TAG_FORMAT,
+            NFC_TAG_MIN_HOLD_SECONDS,
+            PIPELINE_MAX_IN_FLIGHT, PIPELINE_STAGE_THREADS, PIPELINE_QUEUE_BOUND,
+            ARCHIVE_MIN_AGE_MINUTES, ARCHIVE_BYTES_PER_SECOND, ARCHIVE_MAX_SEGMENT_BYTES, ARCHIVE_RETENTION_DAYS,
+            ARCHIVE_MAX_BYTES,
+            WATCHDOG_STAGE_TIMEOUT_SECONDS,
+            SERVER_URL_TTL_SECONDS, SERVER_CACHE_ENTRIES, SERVER_CACHE_BYTES)));
+
+    private static final int SETTLE_ATTEMPTS = 10;
+    private static final long SETTLE_MILLIS = 100;
+
+    private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+    static {
+        DEFAULTS.put(API_URL, "https://digital-receipt-production.herokuapp.com");
+        DEFAULTS.put(API_TRANSPORT, "webclient");
+        DEFAULTS.put(API_TIMEOUT_SECONDS, "30");
+        DEFAULTS.put(API_LEASE_SIZE, "20");
+        DEFAULTS.put(API_LEASE_REFILL_BELOW, "5");
+        DEFAULTS.put(CLOUDINARY_UPLOAD_MODE, "eager");
+        DEFAULTS.put(CLOUDINARY_TIMEOUT_SECONDS, "60");
+        DEFAULTS.put(CLOUDINARY_RETRY_INTERVAL_SECONDS, "60");
+        DEFAULTS.put(EXTRACT_ENABLED, "true");
+        DEFAULTS.put(NFC_SCRIPT_DIR, "/home/pi/Desktop/Digital Receipt/raspberrypi/python/");
+        DEFAULTS.put(NFC_TAG_HOLD_SECONDS, "30");
+        DEFAULTS.put(NFC_TAG_MIN_HOLD_SECONDS, "5");
+        DEFAULTS.put(NFC_SCRIPT_TIMEOUT_SECONDS, "120");
+        DEFAULTS.put(NFC_TAG_FORMAT, "legacy");
+        DEFAULTS.put(PIPELINE_EXECUTOR, "serial");
+        DEFAULTS.put(PIPELINE_MAX_IN_FLIGHT, "4");
+        DEFAULTS.put(PIPELINE_STAGE_THREADS, "8");
+        DEFAULTS.put(PIPELINE_QUEUE_BOUND, "16");
+        DEFAULTS.put(PIPELINE_TAG_FIRST, "false");
+        DEFAULTS.put(ARCHIVE_INTERVAL_SECONDS, "60");
+        DEFAULTS.put(ARCHIVE_MIN_AGE_MINUTES, "10");
+        DEFAULTS.put(ARCHIVE_BYTES_PER_SECOND, "262144");
+        DEFAULTS.put(ARCHIVE_MAX_SEGMENT_BYTES, "8388608");
+        DEFAULTS.put(ARCHIVE_RETENTION_DAYS, "90");
+        DEFAULTS.put(ARCHIVE_MAX_BYTES, "2147483648");
+        DEFAULTS.put(WATCHDOG_INTERVAL_SECONDS, "5");
+        DEFAULTS.put(WATCHDOG_STAGE_TIMEOUT_SECONDS, "90");
+        DEFAULTS.put(SERVER_ENABLED, "false");
+        DEFAULTS.put(SERVER_PORT, "8787");
+        DEFAULTS.put(SERVER_URL_TTL_SECONDS, "300");
+        DEFAULTS.put(SERVER_CACHE_ENTRIES, "64");
+        DEFAULTS.put(SERVER_CACHE_BYTES, "8388608");
+    }
+
+    private final Path file;
+    private final Map<String, String> env;
+    private final List<Consumer<ReceiptConfig>> listeners = new CopyOnWriteArrayList<Consumer<ReceiptConfig>>();
+    private final Set<String> badNumbers = ConcurrentHashMap.newKeySet();
+    private volatile Map<String, String> values;
+    private WatchService watcher;
+
+    /**
+     * Loads the configuration from the given properties file and the environment.
+     *
+     * @param file The properties file, can be null to only use the defaults and
+     *             environment.
+     * @throws IOException If the file exists but can not be read.
+     */
+    public ReceiptConfig(Path file) throws IOException {
+        this(file, System.getenv());
+    }
+
+    /**
+     * Loads the configuration from the given properties file and environment.
+     *
+     * @param file The properties file, can be null.
+     * @param env  The environment variables to override the file with.
+     * @throws IOException If the file exists but can not be read.
+     */
+    public ReceiptConfig(Path file, Map<String, String> env) throws IOException {
+        this.file = file;
+        this.env = env;
+        this.values = load();
+    }
+
+    /**
+     * Gets the value for the given key.
+     *
+     * @param key The key of the value.
+     * @return {@link String} of the value, or null if it is not set.
+     */
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Checks that every key in {@link #REQUIRED} is set.
+     *
+     * @throws IllegalStateException Naming every required key that is missing.
+     */
+    public void requireAccounts() {
+        List<String> missing = new ArrayList<String>();
+        for (String key : REQUIRED) {
+            String value = values.get(key);
+            if (value == null || value.isEmpty())
+                missing.add(String.format("%s (%s)", key, envName(key)));
+        }
+        if (!missing.isEmpty())
+            throw new IllegalStateException(
+                    String.format("Missing required settings: %s", String.join(", ", missing)));
+    }
+
+    /**
+     * Gets the value for the given key as an int. If the value is not a number the
+     * default value for the key is used, with a warning the first time.
+     *
+     * @param key The key of the value.
+     * @return {@link int} of the value.
+     */
+    public int getInt(String key) {
+        return (int) getLong(key);
+    }
+
+    /**
+     * Gets the value for the given key as a long. If the value is not a number the
+     * default value for the key is used, with a warning the first time.
+     *
+     * @param key The key of the value.
+     * @return {@link long} of the value.
+     */
+    public long getLong(String key) {
+        String value = values.get(key);
+        if (isNumber(value))
+            return Long.parseLong(value.trim());
+
+        String fallback = DEFAULTS.get(key);
+        if (fallback == null)
+            throw new IllegalArgumentException(String.format("No number configured for '%s'", key));
+        if (value != null && badNumbers.add(key + "=" + value))
+            log.warn(String.format("%s = %s is not a number, using %s instead.", key, value, fallback));
+        return Long.parseLong(fallback);
+    }
+
+    /**
+     * Gets the value for the given key as a boolean.
+     *
+     * @param key The key of the value.
+     * @return {@link boolean} of the value, false if it is not set.
+     */
+    public boolean getBoolean(String key) {
+        return Boolean.parseBoolean(values.get(key));
+    }
+
+    /**
+     * Adds a listener that is called each time the properties file is reloaded.
+     *
+     * @param listener The listener to call with the updated config.
+     */
+    public void onReload(Consumer<ReceiptConfig> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts a daemon thread that watches the properties file and reloads it when
+     * it changes.
+     *
+     * @throws IOException If the directory of the file can not be watched.
+     */
+    public synchronized void watch() throws IOException {
+        if (file == null || watcher != null)
+            return;
+
+        Path dir = file.toAbsolutePath().getParent();
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+
+        Thread t = new Thread(this::watchLoop, "config-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Reloads the properties file. Only the reloadable keys are applied, the
+     * values currently in use are swapped out in one go so that a receipt never
+     * sees half of a reload. An empty file is taken to be partway through a save
+     * and ignored.
+     *
+     * A key whose new value is rejected keeps its current value. Every listener
+     * is called even if one of them throws, and if one does the previous values
+     * are put back and the listeners are called again with them, so the next
+     * reload starts from the values that are actually in use.
+     *
+     * @throws IOException If the file can not be read, or does not stop changing.
+     */
+    public synchronized void reload() throws IOException {
+        if (file != null && Files.exists(file) && Files.size(file) == 0) {
+            log.warn(String.format("%s is empty, keeping the current values.", file));
+            return;
+        }
+        Map<String, String> loaded = load();
+        Map<String, String> next = new HashMap<String, String>(values);
+        boolean changed = false;
+
+        for (String key : union(loaded.keySet(), values.keySet())) {
+            String now = values.get(key);
+            String then = loaded.get(key);
+            if (now == null ? then == null : now.equals(then))
+                continue;
+
+            if (RELOADABLE.contains(key)) {
+                String rejected = reject(key, then);
+                if (rejected != null) {
+                    log.warn(String.format("%s = %s %s, keeping %s.", key, then, rejected, now));
+                    continue;
+                }
+                putOrRemove(next, key, then);
+                changed = true;
+                log.info(String.format("Reloaded %s = %s", key, then));
+            } else {
+                log.warn(String.format("%s changed, restart to apply it.", key));
+            }
+        }
+
+        if (!changed)
+            return;
+
+        Map<String, String> previous = values;
+        values = Collections.unmodifiableMap(next);
+        if (!notifyListeners()) {
+            log.error("The reload was rejected, putting the previous values back.");
+            values = previous;
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Calls every reload listener, even after one of them throws.
+     *
+     * @return {@link Boolean} if every listener took the values.
+     */
+    private boolean notifyListeners() {
+        boolean accepted = true;
+        for (Consumer<ReceiptConfig> listener : listeners) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                log.warn(String.format("A reload listener failed: %s", e.getMessage()));
+                accepted = false;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Checks a reloaded value before it is applied.
+     *
+     * @return {@link String} of why the value is rejected, or null if it can be
+     *         applied.
+     */
+    private static String reject(String key, String value) {
+        if (value == null)
+            return null;
+        if (isNumber(DEFAULTS.get(key)) && !isNumber(value))
+            return "is not a number";
+        if (NFC_SCRIPT_DIR.equals(key)) {
+            try {
+                if (!Files.isDirectory(Paths.get(value)))
+                    return "is not a directory";
+            } catch (InvalidPathException e) {
+                return "is not a directory";
+            }
+        }
+        return null;
+    }
+
+    private void watchLoop() {
+        Path name = file.getFileName();
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean touched = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (name.equals(event.context()))
+                    touched = true;
+            }
+
+            if (touched) {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    log.warn(String.format("Could not reload %s: %s", file, e.getMessage()));
+                }
+            }
+
+            if (!key.reset())
+                return;
+        }
+    }
+
+    private Map<String, String> load() throws IOException {
+        Map<String, String> loaded = new HashMap<String, String>(DEFAULTS);
+
+        if (file != null && Files.exists(file)) {
+            Properties props = new Properties();
+            try (Reader reader = new StringReader(new String(readSettled(), StandardCharsets.UTF_8))) {
+                props.load(reader);
+            }
+            for (String key : props.stringPropertyNames()) {
+                loaded.put(key, props.getProperty(key).trim());
+            }
+        }
+
+        for (String key : union(loaded.keySet(), new HashSet<String>(KEYS))) {
+            String value = env.get(envName(key));
+            if (value != null)
+                loaded.put(key, value.trim());
+        }
+        return Collections.unmodifiableMap(loaded);
+    }
+
+    /**
+     * Reads the properties file once it reads the same twice in a row, so a file
+     * that is still being written is not loaded with half of its keys.
+     */
+    private byte[] readSettled() throws IOException {
+        byte[] last = Files.readAllBytes(file);
+        for (int attempt = 0; attempt < SETTLE_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(SETTLE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + file);
+            }
+
+            byte[] now = Files.readAllBytes(file);
+            if (Arrays.equals(last, now))
+                return now;
+            last = now;
+        }
+        throw new IOException(String.format("%s is still being written", file));
+    }
+
+    private static boolean isNumber(String value) {
+        if (value == null)
+            return false;
+        try {
+            Long.parseLong(value.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String envName(String key) {
+        return "RECEIPT_" + key.toUpperCase().replace('.', '_').replace('-', '_');
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> keys = new HashSet<String>(a);
+        keys.addAll(b);
+        return keys;
+    }
+
+    private static void putOrRemove(Map<String, String> map, String key, String value) {
+        if (value == null)
+            map.remove(key);
+        else
+            map.put(key, value);
+    }
+
+}
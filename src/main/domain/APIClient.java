@@ -1,21 +1,31 @@
 package main.domain;
 
-import org.springframework.http.MediaType;
-import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.reactive.function.client.WebClient.RequestHeadersSpec;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import main.domain.ApiTransport.Kind;
 import main.domain.model.AuthenticationRequest;
 import main.domain.model.DigitalReceiptToken;
 import main.domain.model.Receipt;
-import reactor.core.publisher.Mono;
+import main.domain.model.ReceiptDetails;
+import main.domain.model.ReceiptIdLease;
+import main.domain.model.ReceiptStatus;
 
 /**
- * API client to make requests to endpoint in backend
+ * API client to make requests to endpoint in backend. The requests are sent
+ * over an {@link ApiTransport}, every call has a blocking and an async version.
  * 
  * @author Seth Hancock
  * @since November 3, 2021
  */
 public class APIClient {
+    private static final String DEFAULT_BASE_URL = "https://digital-receipt-production.herokuapp.com";
+
+    private final ApiTransport transport;
+    private volatile Duration timeout = Duration.ofSeconds(30);
     private DigitalReceiptToken authData;
 
     /**
@@ -27,9 +37,43 @@ public class APIClient {
      * @param password The password associated to that user.
      */
     public APIClient(String email, String password) {
+        this(DEFAULT_BASE_URL, email, password);
+    }
+
+    /**
+     * Constructor that will authenticate the user against the backend at the given
+     * base url.
+     * 
+     * @param baseUrl  The base url of the backend.
+     * @param email    The email of the user.
+     * @param password The password associated to that user.
+     */
+    public APIClient(String baseUrl, String email, String password) {
+        this(ApiTransport.create(Kind.WEBCLIENT, baseUrl), email, password);
+    }
+
+    /**
+     * Constructor that will authenticate the user over the given transport.
+     * 
+     * @param transport The transport to send the requests over.
+     * @param email     The email of the user.
+     * @param password  The password associated to that user.
+     */
+    public APIClient(ApiTransport transport, String email, String password) {
+        this.transport = transport;
         this.authData = authenticate(email, password);
     }
 
+    /**
+     * Sets how long a request can take before it fails. This can be changed while
+     * requests are being made, it applies to the next request.
+     * 
+     * @param timeout The request timeout.
+     */
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * This will insert a receipt into the database for the given public id which
      * will identity the file on cloudinary.
@@ -38,8 +82,137 @@ public class APIClient {
      * @return {@link Receipt} of the inserted data.
      */
     public Receipt insertReceipt(String publicId) {
-        return completeRequest(getWebClient().post().uri("/api/receipt-app/receipt")
-                .body(Mono.just(new Receipt(publicId)), Receipt.class), Receipt.class);
+        return insertReceipt(publicId, null, null);
+    }
+
+    /**
+     * This will insert a receipt into the database along with the details that
+     * were read from the receipt and the link to it on the local receipt server.
+     * 
+     * @param publicId The unique id of the file.
+     * @param details  The details of the receipt, can be null.
+     * @param localUrl The signed link to the receipt on the reader, can be null.
+     * @return {@link Receipt} of the inserted data.
+     */
+    public Receipt insertReceipt(String publicId, ReceiptDetails details, String localUrl) {
+        return await(insertReceiptAsync(publicId, details, localUrl));
+    }
+
+    /**
+     * Async version of {@link #insertReceipt(String)}.
+     * 
+     * @param publicId The unique id of the file.
+     * @return {@link CompletableFuture} of the inserted data.
+     */
+    public CompletableFuture<Receipt> insertReceiptAsync(String publicId) {
+        return insertReceiptAsync(publicId, null, null);
+    }
+
+    /**
+     * Async version of {@link #insertReceipt(String, ReceiptDetails, String)}.
+     * 
+     * @param publicId The unique id of the file.
+     * @param details  The details of the receipt, can be null.
+     * @param localUrl The signed link to the receipt on the reader, can be null.
+     * @return {@link CompletableFuture} of the inserted data.
+     */
+    public CompletableFuture<Receipt> insertReceiptAsync(String publicId, ReceiptDetails details, String localUrl) {
+        Receipt receipt = new Receipt(publicId);
+        receipt.setDetails(details);
+        receipt.setLocalUrl(localUrl);
+        return completeRequest("POST", "/api/receipt-app/receipt", receipt, Receipt.class);
+    }
+
+    /**
+     * This will insert a receipt with an id that was leased ahead of time. The
+     * receipt is marked as pending until {@link #markReceiptUploaded} is called
+     * once the file is on cloudinary.
+     * 
+     * @param id       The leased id of the receipt.
+     * @param publicId The unique id of the file.
+     * @return {@link Receipt} of the inserted data.
+     */
+    public Receipt insertPendingReceipt(int id, String publicId) {
+        return insertPendingReceipt(id, publicId, null, null);
+    }
+
+    /**
+     * This will insert a pending receipt with an id that was leased ahead of time
+     * along with the details that were read from the receipt and the link to it on
+     * the local receipt server.
+     * 
+     * @param id       The leased id of the receipt.
+     * @param publicId The unique id of the file.
+     * @param details  The details of the receipt, can be null.
+     * @param localUrl The signed link to the receipt on the reader, can be null.
+     * @return {@link Receipt} of the inserted data.
+     */
+    public Receipt insertPendingReceipt(int id, String publicId, ReceiptDetails details, String localUrl) {
+        return await(insertPendingReceiptAsync(id, publicId, details, localUrl));
+    }
+
+    /**
+     * Async version of
+     * {@link #insertPendingReceipt(int, String, ReceiptDetails, String)}.
+     * 
+     * @param id       The leased id of the receipt.
+     * @param publicId The unique id of the file.
+     * @param details  The details of the receipt, can be null.
+     * @param localUrl The signed link to the receipt on the reader, can be null.
+     * @return {@link CompletableFuture} of the inserted data.
+     */
+    public CompletableFuture<Receipt> insertPendingReceiptAsync(int id, String publicId, ReceiptDetails details,
+            String localUrl) {
+        Receipt receipt = new Receipt(id, publicId, ReceiptStatus.PENDING);
+        receipt.setDetails(details);
+        receipt.setLocalUrl(localUrl);
+        return completeRequest("POST", "/api/receipt-app/receipt", receipt, Receipt.class);
+    }
+
+    /**
+     * This will mark a pending receipt as uploaded so that the app knows the file
+     * can be fetched from cloudinary.
+     * 
+     * @param id       The id of the receipt.
+     * @param publicId The unique id of the file.
+     * @return {@link Receipt} of the updated data.
+     */
+    public Receipt markReceiptUploaded(int id, String publicId) {
+        return await(markReceiptUploadedAsync(id, publicId));
+    }
+
+    /**
+     * Async version of {@link #markReceiptUploaded(int, String)}.
+     * 
+     * @param id       The id of the receipt.
+     * @param publicId The unique id of the file.
+     * @return {@link CompletableFuture} of the updated data.
+     */
+    public CompletableFuture<Receipt> markReceiptUploadedAsync(int id, String publicId) {
+        return completeRequest("PUT", String.format("/api/receipt-app/receipt/%d", id),
+                new Receipt(id, publicId, ReceiptStatus.UPLOADED), Receipt.class);
+    }
+
+    /**
+     * This will lease a block of receipt ids from the backend so that receipts can
+     * be given an id without waiting on a request.
+     * 
+     * @param count The number of ids to lease.
+     * @return {@link ReceiptIdLease} of the leased ids.
+     */
+    public ReceiptIdLease leaseReceiptIds(int count) {
+        return await(leaseReceiptIdsAsync(count));
+    }
+
+    /**
+     * Async version of {@link #leaseReceiptIds(int)}.
+     * 
+     * @param count The number of ids to lease.
+     * @return {@link CompletableFuture} of the leased ids.
+     */
+    public CompletableFuture<ReceiptIdLease> leaseReceiptIdsAsync(int count) {
+        return completeRequest("POST", String.format("/api/receipt-app/receipt/lease?count=%d", count), null,
+                ReceiptIdLease.class);
     }
 
     /**
@@ -48,8 +221,16 @@ public class APIClient {
      * @return {@link Long} of the next auto increment id.
      */
     public long getAutoIncrement() {
-        return completeRequest(getWebClient().get().uri("/api/receipt-app/receipt/receipt-details/auto-increment"),
-                Long.class);
+        return await(getAutoIncrementAsync());
+    }
+
+    /**
+     * Async version of {@link #getAutoIncrement()}.
+     * 
+     * @return {@link CompletableFuture} of the next auto increment id.
+     */
+    public CompletableFuture<Long> getAutoIncrementAsync() {
+        return completeRequest("GET", "/api/receipt-app/receipt/receipt-details/auto-increment", null, Long.class);
     }
 
     /**
@@ -58,9 +239,8 @@ public class APIClient {
      * @return {@link DigitalReceiptToken} with the user and token object.
      */
     private DigitalReceiptToken authenticate(String email, String password) {
-        return getWebClient().post().uri("/authenticate")
-                .body(Mono.just(new AuthenticationRequest(email, password)), AuthenticationRequest.class).retrieve()
-                .bodyToMono(DigitalReceiptToken.class).block();
+        return await(transport.send("POST", "/authenticate", new AuthenticationRequest(email, password), null,
+                DigitalReceiptToken.class, timeout));
     }
 
     /**
@@ -68,22 +248,39 @@ public class APIClient {
      * header data to the request so that it can be authenticated and pass through
      * the JWT Validator.
      * 
-     * @param <T>     The object to parse the return data as.
-     * @param request The request that needs the authorization header.
-     * @param clazz   The class instance to convert the data too.
-     * @return {@link T} of the processed data.
+     * @param <T>    The object to parse the return data as.
+     * @param method The http method of the request.
+     * @param path   The path of the request.
+     * @param body   The body of the request, can be null.
+     * @param clazz  The class instance to convert the data too.
+     * @return {@link CompletableFuture} of the processed data.
      */
-    private <T> T completeRequest(RequestHeadersSpec<?> request, Class<T> clazz) {
-        return request.header("Authorization", String.format("Bearer: %s", authData.getToken()))
-                .accept(MediaType.APPLICATION_JSON).retrieve().bodyToMono(clazz).block();
+    private <T> CompletableFuture<T> completeRequest(String method, String path, Object body, Class<T> clazz) {
+        return transport.send(method, path, body, authData.getToken(), clazz, timeout);
     }
 
     /**
-     * Creates the base webclient builder.
+     * Blocks until the request is done, for at most the request timeout.
      * 
-     * @return {@link WebClient.Builder} object with the base url.
+     * @param <T>     The object the data was parsed as.
+     * @param request The request to wait on.
+     * @return {@link T} of the processed data.
      */
-    private static WebClient getWebClient() {
-        return WebClient.builder().baseUrl("https://digital-receipt-production.herokuapp.com").build();
+    private <T> T await(CompletableFuture<T> request) {
+        Duration t = timeout;
+        try {
+            return request.get(t.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            request.cancel(true);
+            throw new IllegalStateException(String.format("Timeout on blocking read for %d ms", t.toMillis()), e);
+        } catch (InterruptedException e) {
+            request.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the request", e);
+        }
     }
 }
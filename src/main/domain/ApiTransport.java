@@ -0,0 +1,51 @@
+package main.domain;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport the {@link APIClient} sends its JSON requests over. The WebClient
+ * transport needs the Spring and Netty stack, the http client transport only
+ * needs the JDK and Jackson, which keeps the heap and start up time down on the
+ * Pi.
+ */
+public interface ApiTransport {
+
+    public enum Kind {
+        WEBCLIENT, HTTP_CLIENT;
+
+        public static Kind of(String value) {
+            for (Kind k : values())
+                if (value != null && k.name().equalsIgnoreCase(value.replace('-', '_')))
+                    return k;
+            throw new IllegalArgumentException(
+                    String.format("Unknown transport '%s', expected webclient or http-client", value));
+        }
+    }
+
+    /**
+     * Sends a request and maps the JSON response to the given type.
+     *
+     * @param <T>     The type to map the response to.
+     * @param method  The http method of the request.
+     * @param path    The path of the request, relative to the base url.
+     * @param body    The object to send as the JSON body, can be null.
+     * @param token   The bearer token to send, can be null.
+     * @param type    The class of the response.
+     * @param timeout How long the request can take.
+     * @return {@link CompletableFuture} of the mapped response.
+     */
+    <T> CompletableFuture<T> send(String method, String path, Object body, String token, Class<T> type,
+            Duration timeout);
+
+    /**
+     * Creates the transport of the given kind.
+     *
+     * @param kind    The kind of transport.
+     * @param baseUrl The base url of the backend.
+     * @return {@link ApiTransport} for the base url.
+     */
+    static ApiTransport create(Kind kind, String baseUrl) {
+        return kind == Kind.HTTP_CLIENT ? new HttpClientTransport(baseUrl) : new WebClientTransport(baseUrl);
+    }
+}
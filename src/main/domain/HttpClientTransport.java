@@ -0,0 +1,85 @@
+package main.domain;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Transport that sends the requests with the JDK {@link HttpClient} and maps
+ * the JSON with Jackson. The mapper is set up the same way the WebClient sets up
+ * its own, so both transports send and accept the same JSON.
+ */
+public class HttpClientTransport implements ApiTransport {
+    private final String baseUrl;
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
+
+    /**
+     * Creates the http client for the given base url.
+     *
+     * @param baseUrl The base url of the backend.
+     */
+    public HttpClientTransport(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL).build();
+        this.mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .configure(MapperFeature.DEFAULT_VIEW_INCLUSION, false).findAndRegisterModules();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> send(String method, String path, Object body, String token, Class<T> type,
+            Duration timeout) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(timeout)
+                .header("Accept", "application/json");
+        if (token != null)
+            request.header("Authorization", String.format("Bearer: %s", token));
+
+        if (body != null) {
+            request.header("Content-Type", "application/json").method(method,
+                    BodyPublishers.ofByteArray(toJson(body)));
+        } else {
+            request.method(method, BodyPublishers.noBody());
+        }
+
+        return httpClient.sendAsync(request.build(), BodyHandlers.ofByteArray())
+                .thenApply(response -> fromJson(method, path, response, type));
+    }
+
+    private byte[] toJson(Object body) {
+        try {
+            return mapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(String.format("Could not write %s as JSON", body.getClass()), e);
+        }
+    }
+
+    private <T> T fromJson(String method, String path, HttpResponse<byte[]> response, Class<T> type) {
+        if (response.statusCode() >= 400)
+            throw new IllegalStateException(String.format("%s %s failed with status %d", method, path,
+                    response.statusCode()));
+
+        byte[] json = response.body();
+        if (json == null || json.length == 0)
+            return null;
+
+        try {
+            return mapper.readValue(json, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Could not read %s %s as %s", method, path,
+                    type.getSimpleName()), e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package main.domain;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import main.domain.model.ReceiptIdLease;
+import main.log.ConsoleLog;
+
+/**
+ * Pool of receipt ids leased from the backend ahead of time. Taking an id never
+ * makes a request, when the pool runs low a new lease is requested in the
+ * background so there is always an id ready for the next receipt.
+ */
+public class ReceiptIdPool {
+    private static final ConsoleLog log = new ConsoleLog("ReceiptIdPool");
+    private static final long RETRY_MILLIS = 60000;
+
+    private final APIClient apiClient;
+    private final Deque<LeasedIds> leases = new ArrayDeque<LeasedIds>();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "receipt-id-lease");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile int leaseSize;
+    private volatile int refillBelow;
+    private volatile long retryAfter;
+
+    /**
+     * Creates the pool and requests the first lease in the background.
+     *
+     * @param apiClient   The client to lease the ids with.
+     * @param leaseSize   How many ids to lease at a time.
+     * @param refillBelow Lease more ids once the pool has fewer than this.
+     */
+    public ReceiptIdPool(APIClient apiClient, int leaseSize, int refillBelow) {
+        this.apiClient = apiClient;
+        this.leaseSize = Math.max(1, leaseSize);
+        this.refillBelow = refillBelow;
+        refillAsync();
+    }
+
+    /**
+     * Takes the next leased id.
+     *
+     * @return {@link Integer} of the id, or null if there are no ids left.
+     */
+    public Integer take() {
+        Integer id = null;
+        int remaining;
+        synchronized (this) {
+            Date now = new Date();
+            while (!leases.isEmpty() && leases.peekFirst().isUsedUp(now)) {
+                leases.pollFirst();
+            }
+            if (!leases.isEmpty())
+                id = leases.peekFirst().next++;
+            remaining = available();
+        }
+
+        if (remaining < refillBelow)
+            refillAsync();
+        return id;
+    }
+
+    public void setLeaseSize(int leaseSize) {
+        this.leaseSize = Math.max(1, leaseSize);
+    }
+
+    public void setRefillBelow(int refillBelow) {
+        this.refillBelow = refillBelow;
+    }
+
+    /**
+     * @return {@link int} of the number of ids ready to be taken.
+     */
+    public synchronized int available() {
+        int count = 0;
+        for (LeasedIds lease : leases) {
+            count += lease.end - lease.next;
+        }
+        return count;
+    }
+
+    /**
+     * Requests a new lease on the background thread unless one is already on its
+     * way.
+     */
+    private void refillAsync() {
+        if (System.currentTimeMillis() < retryAfter || !refilling.compareAndSet(false, true))
+            return;
+
+        refiller.execute(() -> {
+            try {
+                ReceiptIdLease lease = apiClient.leaseReceiptIds(leaseSize);
+                if (lease != null && lease.getCount() > 0) {
+                    synchronized (this) {
+                        leases.addLast(new LeasedIds(lease));
+                    }
+                }
+            } catch (Exception e) {
+                retryAfter = System.currentTimeMillis() + RETRY_MILLIS;
+                log.warn(String.format("Lease failed: %s", e.getMessage()));
+            } finally {
+                refilling.set(false);
+            }
+        });
+    }
+
+    /**
+     * The ids of a single lease that have not been taken yet.
+     */
+    private static class LeasedIds {
+        private int next;
+        private final int end;
+        private final Date expireDate;
+
+        private LeasedIds(ReceiptIdLease lease) {
+            this.next = lease.getStartId();
+            this.end = lease.getStartId() + lease.getCount();
+            this.expireDate = lease.getExpireDate();
+        }
+
+        private boolean isUsedUp(Date now) {
+            return next >= end || (expireDate != null && expireDate.before(now));
+        }
+    }
+}
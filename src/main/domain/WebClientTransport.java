@@ -0,0 +1,38 @@
+package main.domain;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClient.RequestBodySpec;
+
+/**
+ * Transport that sends the requests with the Spring {@link WebClient}.
+ */
+public class WebClientTransport implements ApiTransport {
+    private final WebClient webClient;
+
+    /**
+     * Creates the base webclient for the given base url.
+     *
+     * @param baseUrl The base url of the backend.
+     */
+    public WebClientTransport(String baseUrl) {
+        this.webClient = WebClient.builder().baseUrl(baseUrl).build();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> send(String method, String path, Object body, String token, Class<T> type,
+            Duration timeout) {
+        RequestBodySpec request = webClient.method(HttpMethod.valueOf(method)).uri(path)
+                .accept(MediaType.APPLICATION_JSON);
+        if (token != null)
+            request.header("Authorization", String.format("Bearer: %s", token));
+        if (body != null)
+            request.syncBody(body);
+
+        return request.retrieve().bodyToMono(type).timeout(timeout).toFuture();
+    }
+}
@@ -21,6 +21,15 @@ public class Receipt {
 
     private Date insertDate;
 
+    @JsonInclude(Include.NON_NULL)
+    private ReceiptStatus status;
+
+    @JsonInclude(Include.NON_NULL)
+    private ReceiptDetails details;
+
+    @JsonInclude(Include.NON_NULL)
+    private String localUrl;
+
     public Receipt() {
     }
 
@@ -39,6 +48,12 @@ public class Receipt {
         this.insertDate = insertDate;
     }
 
+    public Receipt(int id, String filePublicId, ReceiptStatus status) {
+        this.id = id;
+        this.filePublicId = filePublicId;
+        this.status = status;
+    }
+
     public int getId() {
         return id;
     }
@@ -70,4 +85,28 @@ public class Receipt {
     public void setInsertDate(Date insertDate) {
         this.insertDate = insertDate;
     }
+
+    public ReceiptStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(ReceiptStatus status) {
+        this.status = status;
+    }
+
+    public ReceiptDetails getDetails() {
+        return details;
+    }
+
+    public void setDetails(ReceiptDetails details) {
+        this.details = details;
+    }
+
+    public String getLocalUrl() {
+        return localUrl;
+    }
+
+    public void setLocalUrl(String localUrl) {
+        this.localUrl = localUrl;
+    }
 }
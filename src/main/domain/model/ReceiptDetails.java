@@ -0,0 +1,79 @@
+package main.domain.model;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Structured data read from the text of a receipt, so the backend can search
+ * and total receipts without looking at the file.
+ */
+@JsonInclude(Include.NON_NULL)
+public class ReceiptDetails {
+    private String merchant;
+
+    private Date purchaseDate;
+
+    private List<ReceiptLineItem> items = new ArrayList<ReceiptLineItem>();
+
+    private BigDecimal subtotal;
+
+    private BigDecimal tax;
+
+    private BigDecimal total;
+
+    public ReceiptDetails() {
+    }
+
+    public String getMerchant() {
+        return merchant;
+    }
+
+    public void setMerchant(String merchant) {
+        this.merchant = merchant;
+    }
+
+    public Date getPurchaseDate() {
+        return purchaseDate;
+    }
+
+    public void setPurchaseDate(Date purchaseDate) {
+        this.purchaseDate = purchaseDate;
+    }
+
+    public List<ReceiptLineItem> getItems() {
+        return items;
+    }
+
+    public void setItems(List<ReceiptLineItem> items) {
+        this.items = items;
+    }
+
+    public BigDecimal getSubtotal() {
+        return subtotal;
+    }
+
+    public void setSubtotal(BigDecimal subtotal) {
+        this.subtotal = subtotal;
+    }
+
+    public BigDecimal getTax() {
+        return tax;
+    }
+
+    public void setTax(BigDecimal tax) {
+        this.tax = tax;
+    }
+
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    public void setTotal(BigDecimal total) {
+        this.total = total;
+    }
+}
@@ -0,0 +1,49 @@
+package main.domain.model;
+
+import java.util.Date;
+
+/**
+ * Block of receipt ids that the backend has reserved for this reader. The ids
+ * run from {@code startId} for {@code count} ids and can be used until the
+ * lease expires.
+ */
+public class ReceiptIdLease {
+    private int startId;
+
+    private int count;
+
+    private Date expireDate;
+
+    public ReceiptIdLease() {
+    }
+
+    public ReceiptIdLease(int startId, int count, Date expireDate) {
+        this.startId = startId;
+        this.count = count;
+        this.expireDate = expireDate;
+    }
+
+    public int getStartId() {
+        return startId;
+    }
+
+    public void setStartId(int startId) {
+        this.startId = startId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public Date getExpireDate() {
+        return expireDate;
+    }
+
+    public void setExpireDate(Date expireDate) {
+        this.expireDate = expireDate;
+    }
+}
@@ -0,0 +1,47 @@
+package main.domain.model;
+
+import java.math.BigDecimal;
+
+/**
+ * A single line item of a receipt, the amount is the price of the whole line.
+ */
+public class ReceiptLineItem {
+    private String description;
+
+    private int quantity = 1;
+
+    private BigDecimal amount;
+
+    public ReceiptLineItem() {
+    }
+
+    public ReceiptLineItem(String description, int quantity, BigDecimal amount) {
+        this.description = description;
+        this.quantity = quantity;
+        this.amount = amount;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public void setAmount(BigDecimal amount) {
+        this.amount = amount;
+    }
+}
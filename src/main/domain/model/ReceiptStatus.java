@@ -0,0 +1,8 @@
+package main.domain.model;
+
+/**
+ * Receipt Status enum to map if the receipt file has landed on cloudinary yet.
+ */
+public enum ReceiptStatus {
+    PENDING, UPLOADED;
+}
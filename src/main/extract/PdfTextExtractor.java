@@ -0,0 +1,559 @@
+package main.extract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the text layer of the PDF files that CUPS writes for each print job.
+ * This is not a full PDF parser, it only goes as far as receipts need. Every
+ * uncompressed or FlateDecode stream is decoded, the ones with text in them
+ * are run through the text operators ({@code Tj}, {@code TJ}, {@code '} and
+ * {@code "}) and a new line is started whenever the text moves down the page.
+ *
+ * Strings are read as Latin-1 unless the file has ToUnicode maps, in which case
+ * the maps of every font are merged and used for all text. Receipts are printed
+ * in a single font so this is enough to read them. Scanned receipts have no
+ * text layer at all and come back with no lines.
+ */
+public class PdfTextExtractor {
+    private static final byte[] STREAM = "stream".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_STREAM = "endstream".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_INFLATED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Reads the lines of text from the PDF file.
+     *
+     * @param file The PDF file to read.
+     * @return {@link List} of the lines of text, empty if there is no text layer.
+     * @throws IOException If the file can not be read.
+     */
+    public List<String> extractLines(Path file) throws IOException {
+        return extractLines(Files.readAllBytes(file));
+    }
+
+    /**
+     * Reads the lines of text from the bytes of a PDF.
+     *
+     * @param pdf The bytes of the PDF.
+     * @return {@link List} of the lines of text, empty if there is no text layer.
+     */
+    public List<String> extractLines(byte[] pdf) {
+        List<byte[]> contents = new ArrayList<byte[]>();
+        CMap cmap = new CMap();
+
+        int from = 0;
+        int start;
+        while ((start = indexOf(pdf, STREAM, from)) >= 0) {
+            int dictStart = lastIndexOf(pdf, "obj".getBytes(StandardCharsets.US_ASCII), start);
+            String dict = new String(pdf, Math.max(0, dictStart), start - Math.max(0, dictStart),
+                    StandardCharsets.ISO_8859_1);
+
+            int dataStart = start + STREAM.length;
+            if (dataStart < pdf.length && pdf[dataStart] == '\r')
+                dataStart++;
+            if (dataStart < pdf.length && pdf[dataStart] == '\n')
+                dataStart++;
+
+            int end = indexOf(pdf, END_STREAM, dataStart);
+            if (end < 0)
+                break;
+            from = end + END_STREAM.length;
+
+            byte[] data = decode(dict, pdf, dataStart, end);
+            if (data == null)
+                continue;
+
+            String text = new String(data, StandardCharsets.ISO_8859_1);
+            if (text.contains("begincmap"))
+                cmap.parse(text);
+            else if (text.contains("BT"))
+                contents.add(data);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (byte[] content : contents) {
+            new ContentReader(content, cmap, lines).read();
+        }
+        return lines;
+    }
+
+    /**
+     * Decodes the stream if it could hold text, images and embedded fonts are
+     * skipped.
+     *
+     * @return {@code byte[]} of the stream data, or null if it is skipped.
+     */
+    private byte[] decode(String dict, byte[] pdf, int start, int end) {
+        if (dict.contains("/Image") || dict.contains("/Length1") || dict.contains("/Length2")
+                || dict.contains("/XRef") || dict.contains("/ObjStm"))
+            return null;
+
+        boolean flate = dict.contains("/FlateDecode");
+        if (!flate && dict.contains("/Filter"))
+            return null;
+
+        // Trim the end of line before endstream
+        while (end > start && (pdf[end - 1] == '\n' || pdf[end - 1] == '\r'))
+            end--;
+
+        if (!flate) {
+            byte[] raw = new byte[end - start];
+            System.arraycopy(pdf, start, raw, 0, raw.length);
+            return raw;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(pdf, start, end - start);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            while (!inflater.finished() && out.size() < MAX_INFLATED_BYTES) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] target, int from) {
+        outer: for (int i = Math.max(0, from); i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j])
+                    continue outer;
+            }
+            // Skip the "stream" inside of "endstream"
+            if (target == STREAM && i >= 3 && data[i - 3] == 'e' && data[i - 2] == 'n' && data[i - 1] == 'd')
+                continue;
+            return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte[] target, int before) {
+        outer: for (int i = before - target.length; i >= 0; i--) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Character codes to unicode, merged from every ToUnicode map in the file.
+     */
+    private static class CMap {
+        private final Map<Integer, String> codes = new HashMap<Integer, String>();
+        private int codeLength = 1;
+
+        private boolean isEmpty() {
+            return codes.isEmpty();
+        }
+
+        private void parse(String text) {
+            parseSections(text, "beginbfchar", "endbfchar", false);
+            parseSections(text, "beginbfrange", "endbfrange", true);
+        }
+
+        private void parseSections(String text, String begin, String end, boolean range) {
+            int from = 0;
+            int b;
+            while ((b = text.indexOf(begin, from)) >= 0) {
+                int e = text.indexOf(end, b);
+                if (e < 0)
+                    return;
+                from = e + end.length();
+
+                List<String> tokens = new ArrayList<String>();
+                String body = text.substring(b + begin.length(), e);
+                int i = 0;
+                while (i < body.length()) {
+                    char c = body.charAt(i);
+                    if (c == '<' || c == '[' || c == ']') {
+                        int close = c == '<' ? body.indexOf('>', i) : i;
+                        if (close < 0)
+                            break;
+                        tokens.add(body.substring(i, close + 1));
+                        i = close + 1;
+                    } else {
+                        i++;
+                    }
+                }
+
+                if (range)
+                    addRanges(tokens);
+                else
+                    for (int t = 0; t + 1 < tokens.size(); t += 2)
+                        put(tokens.get(t), hexToUnicode(tokens.get(t + 1)));
+            }
+        }
+
+        private void addRanges(List<String> tokens) {
+            int t = 0;
+            while (t + 2 < tokens.size()) {
+                int lo = hexValue(tokens.get(t));
+                int hi = hexValue(tokens.get(t + 1));
+                codeLength = Math.max(codeLength, (tokens.get(t).length() - 2) / 2);
+
+                if (tokens.get(t + 2).equals("[")) {
+                    t += 3;
+                    for (int code = lo; t < tokens.size() && !tokens.get(t).equals("]"); code++, t++)
+                        codes.put(code, hexToUnicode(tokens.get(t)));
+                    t++;
+                } else {
+                    String dst = hexToUnicode(tokens.get(t + 2));
+                    for (int code = lo; code <= hi && code - lo < 65536; code++) {
+                        char last = (char) (dst.charAt(dst.length() - 1) + (code - lo));
+                        codes.put(code, dst.substring(0, dst.length() - 1) + last);
+                    }
+                    t += 3;
+                }
+            }
+        }
+
+        private void put(String src, String dst) {
+            codeLength = Math.max(codeLength, (src.length() - 2) / 2);
+            codes.put(hexValue(src), dst);
+        }
+
+        private String decode(byte[] data) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i + codeLength <= data.length; i += codeLength) {
+                int code = 0;
+                for (int j = 0; j < codeLength; j++)
+                    code = (code << 8) | (data[i + j] & 0xFF);
+                String s = codes.get(code);
+                if (s != null)
+                    sb.append(s);
+            }
+            return sb.toString();
+        }
+
+        private static int hexValue(String token) {
+            String hex = token.substring(1, token.length() - 1).trim();
+            return hex.isEmpty() ? 0 : (int) Long.parseLong(hex, 16);
+        }
+
+        private static String hexToUnicode(String token) {
+            String hex = token.substring(1, token.length() - 1).replaceAll("\\s", "");
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i + 4 <= hex.length(); i += 4)
+                sb.append((char) Integer.parseInt(hex.substring(i, i + 4), 16));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Runs the text operators of a single content stream.
+     */
+    private static class ContentReader {
+        private final byte[] data;
+        private final CMap cmap;
+        private final List<String> lines;
+        private final List<Object> operands = new ArrayList<Object>();
+        private final StringBuilder line = new StringBuilder();
+        private int pos;
+        private double y;
+        private double shownY = Double.NaN;
+        private double leading;
+        private boolean moved;
+        private boolean lineBreak;
+
+        private ContentReader(byte[] data, CMap cmap, List<String> lines) {
+            this.data = data;
+            this.cmap = cmap;
+            this.lines = lines;
+        }
+
+        private void read() {
+            while (skipWhitespace()) {
+                char c = (char) (data[pos] & 0xFF);
+                if (c == '(') {
+                    operands.add(readLiteral());
+                } else if (c == '<' && pos + 1 < data.length && data[pos + 1] == '<') {
+                    skipDictionary();
+                } else if (c == '<') {
+                    operands.add(readHex());
+                } else if (c == '[') {
+                    pos++;
+                    operands.add("[");
+                } else if (c == ']') {
+                    pos++;
+                    operands.add("]");
+                } else if (c == '/') {
+                    readToken();
+                    operands.add("/");
+                } else if (c == '%') {
+                    while (pos < data.length && data[pos] != '\n' && data[pos] != '\r')
+                        pos++;
+                } else {
+                    String token = readToken();
+                    Double number = parseNumber(token);
+                    if (number != null) {
+                        operands.add(number);
+                    } else {
+                        operator(token);
+                        operands.clear();
+                    }
+                }
+            }
+            newLine();
+        }
+
+        private void operator(String op) {
+            switch (op) {
+            case "BT":
+                y = 0;
+                moved = true;
+                break;
+            case "Td":
+                y += number(1);
+                moved = true;
+                break;
+            case "TD":
+                leading = -number(1);
+                y += number(1);
+                moved = true;
+                break;
+            case "TL":
+                leading = number(0);
+                break;
+            case "Tm":
+                y = number(5);
+                moved = true;
+                break;
+            case "T*":
+                nextLine();
+                break;
+            case "Tj":
+                showStrings();
+                break;
+            case "TJ":
+                showArray();
+                break;
+            case "'":
+            case "\"":
+                nextLine();
+                showStrings();
+                break;
+            case "BI":
+                skipInlineImage();
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void nextLine() {
+            y -= leading;
+            moved = true;
+            lineBreak = true;
+        }
+
+        /**
+         * Starts a new line if the text has moved up or down the page since the last
+         * text was shown, or puts a space in if it moved along the line.
+         */
+        private void position() {
+            if (lineBreak || (!Double.isNaN(shownY) && Math.abs(y - shownY) > 0.5))
+                newLine();
+            else if (moved && line.length() > 0 && line.charAt(line.length() - 1) != ' ')
+                line.append(' ');
+
+            shownY = y;
+            moved = false;
+            lineBreak = false;
+        }
+
+        private void showStrings() {
+            position();
+            for (Object o : operands)
+                if (o instanceof byte[])
+                    line.append(decodeString((byte[]) o));
+        }
+
+        private void showArray() {
+            position();
+            for (Object o : operands) {
+                if (o instanceof byte[])
+                    line.append(decodeString((byte[]) o));
+                else if (o instanceof Double && (Double) o < -200 && line.length() > 0)
+                    line.append(' '); // A wide gap between glyphs is a space
+            }
+        }
+
+        private String decodeString(byte[] s) {
+            if (!cmap.isEmpty())
+                return cmap.decode(s);
+            return new String(s, StandardCharsets.ISO_8859_1);
+        }
+
+        private void newLine() {
+            String text = line.toString().replaceAll("[\\p{Cntrl}&&[^\t]]", "").trim();
+            if (!text.isEmpty())
+                lines.add(text);
+            line.setLength(0);
+        }
+
+        private double number(int index) {
+            int n = 0;
+            for (Object o : operands) {
+                if (o instanceof Double && n++ == index)
+                    return (Double) o;
+            }
+            return 0;
+        }
+
+        private boolean skipWhitespace() {
+            while (pos < data.length && isWhitespace(data[pos]))
+                pos++;
+            return pos < data.length;
+        }
+
+        private byte[] readLiteral() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int depth = 0;
+            pos++;
+            while (pos < data.length) {
+                int c = data[pos++] & 0xFF;
+                if (c == '\\' && pos < data.length) {
+                    int e = data[pos++] & 0xFF;
+                    switch (e) {
+                    case 'n':
+                        out.write('\n');
+                        break;
+                    case 'r':
+                        out.write('\r');
+                        break;
+                    case 't':
+                        out.write('\t');
+                        break;
+                    case 'b':
+                        out.write('\b');
+                        break;
+                    case 'f':
+                        out.write('\f');
+                        break;
+                    case '\r':
+                        if (pos < data.length && data[pos] == '\n')
+                            pos++;
+                        break;
+                    case '\n':
+                        break;
+                    default:
+                        if (e >= '0' && e <= '7') {
+                            int octal = e - '0';
+                            for (int i = 0; i < 2 && pos < data.length && data[pos] >= '0' && data[pos] <= '7'; i++)
+                                octal = octal * 8 + (data[pos++] - '0');
+                            out.write(octal);
+                        } else {
+                            out.write(e);
+                        }
+                    }
+                } else if (c == '(') {
+                    depth++;
+                    out.write(c);
+                } else if (c == ')') {
+                    if (depth-- == 0)
+                        break;
+                    out.write(c);
+                } else {
+                    out.write(c);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private byte[] readHex() {
+            StringBuilder hex = new StringBuilder();
+            pos++;
+            while (pos < data.length && data[pos] != '>') {
+                char c = (char) data[pos++];
+                if (Character.digit(c, 16) >= 0)
+                    hex.append(c);
+            }
+            pos++;
+            if (hex.length() % 2 == 1)
+                hex.append('0');
+
+            byte[] out = new byte[hex.length() / 2];
+            for (int i = 0; i < out.length; i++)
+                out[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            return out;
+        }
+
+        private void skipDictionary() {
+            int depth = 0;
+            while (pos + 1 < data.length) {
+                if (data[pos] == '<' && data[pos + 1] == '<') {
+                    depth++;
+                    pos += 2;
+                } else if (data[pos] == '>' && data[pos + 1] == '>') {
+                    pos += 2;
+                    if (--depth == 0)
+                        return;
+                } else {
+                    pos++;
+                }
+            }
+            pos = data.length;
+        }
+
+        private void skipInlineImage() {
+            // The image data runs from ID to EI and can hold any bytes
+            while (pos + 2 < data.length) {
+                if (isWhitespace(data[pos]) && data[pos + 1] == 'E' && data[pos + 2] == 'I'
+                        && (pos + 3 >= data.length || isWhitespace(data[pos + 3]))) {
+                    pos += 3;
+                    return;
+                }
+                pos++;
+            }
+            pos = data.length;
+        }
+
+        private String readToken() {
+            int start = pos;
+            pos++;
+            while (pos < data.length && !isWhitespace(data[pos]) && !isDelimiter(data[pos]))
+                pos++;
+            return new String(data, start, pos - start, StandardCharsets.ISO_8859_1);
+        }
+
+        private static Double parseNumber(String token) {
+            char c = token.charAt(0);
+            if (!(c == '-' || c == '+' || c == '.' || (c >= '0' && c <= '9')))
+                return null;
+            try {
+                return Double.valueOf(token);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+        }
+
+        private static boolean isDelimiter(byte b) {
+            return b == '(' || b == ')' || b == '<' || b == '>' || b == '[' || b == ']' || b == '/' || b == '%'
+                    || b == '{' || b == '}';
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package main.extract;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import main.domain.model.ReceiptDetails;
+import main.domain.model.ReceiptLineItem;
+
+/**
+ * Turns the text of a printed receipt into {@link ReceiptDetails}. Receipts
+ * print one entry per line with the amount at the end of the line, so every
+ * line ending in an amount is either a line item or one of the summary lines
+ * (subtotal, tax, total). Lines before the total are items, even ones named
+ * like a payment such as a gift card. Payment lines like cash and change come
+ * after the total and are skipped along with the rest of the lines there. The
+ * merchant is the first line of text and the purchase date is the first date
+ * found on the receipt.
+ */
+public class ReceiptExtractor {
+    private static final Pattern AMOUNT_LINE = Pattern
+            .compile("^(.*?\\S)\\s+\\$?\\s?(-?\\d{1,3}(?:,\\d{3})*\\.\\d{2})(?:\\s*[A-Z]{1,2})?$");
+    private static final Pattern QUANTITY = Pattern.compile("^(\\d{1,3})\\s*[xX@]\\s+(.+)$");
+    private static final Pattern UNIT_PRICE = Pattern.compile("\\s+(?:(\\d{1,3})\\s*)?[xX@]\\s*\\$?\\d+\\.\\d{2}$");
+    private static final Pattern TRAILING_PRICE = Pattern.compile("\\s+\\$?(\\d+\\.\\d{2})$");
+    private static final Pattern SUBTOTAL = Pattern.compile("(?i)^sub\\s*-?\\s*total\\b.*");
+    private static final Pattern TAX = Pattern.compile("(?i)^(?:sales\\s+)?tax\\b.*|.*\\btax\\s*$");
+    private static final Pattern TOTAL = Pattern
+            .compile("(?i)^(?:grand\\s+)?total\\b.*|^(?:amount|balance)\\s+due\\b.*");
+    private static final Pattern PAYMENT = Pattern.compile(
+            "(?i).*\\b(?:cash|change|tender(?:ed)?|visa|mastercard|amex|discover|debit|credit|card|paid)\\b.*");
+
+    private static final Pattern US_DATE = Pattern.compile("\\b(\\d{1,2})/(\\d{1,2})/(\\d{2}|\\d{4})\\b");
+    private static final Pattern ISO_DATE = Pattern.compile("\\b(\\d{4})-(\\d{2})-(\\d{2})\\b");
+    private static final Pattern TIME = Pattern.compile("\\b(\\d{1,2}):(\\d{2})(?::(\\d{2}))?\\s*([AaPp][Mm])?\\b");
+
+    private final PdfTextExtractor pdf = new PdfTextExtractor();
+
+    /**
+     * Reads the details from the receipt PDF.
+     *
+     * @param file The receipt PDF.
+     * @return {@link ReceiptDetails} of the receipt, or null if the file has no
+     *         text layer or does not look like a receipt.
+     * @throws IOException If the file can not be read.
+     */
+    public ReceiptDetails extract(Path file) throws IOException {
+        return parse(pdf.extractLines(file));
+    }
+
+    /**
+     * Reads the details from the lines of text of a receipt.
+     *
+     * @param lines The lines of the receipt.
+     * @return {@link ReceiptDetails} of the receipt, or null if nothing that looks
+     *         like a receipt was found.
+     */
+    public ReceiptDetails parse(List<String> lines) {
+        ReceiptDetails details = new ReceiptDetails();
+
+        for (String raw : lines) {
+            String line = raw.replaceAll("\\s+", " ").trim();
+            if (line.isEmpty())
+                continue;
+
+            if (details.getPurchaseDate() == null)
+                details.setPurchaseDate(parseDate(line));
+
+            Matcher m = AMOUNT_LINE.matcher(line);
+            if (!m.matches()) {
+                if (details.getMerchant() == null && details.getItems().isEmpty() && isMerchant(line))
+                    details.setMerchant(line);
+                continue;
+            }
+
+            String label = m.group(1).trim();
+            BigDecimal amount = new BigDecimal(m.group(2).replace(",", ""));
+
+            // Payments are only told apart after the total, so they are not read as
+            // a summary line
+            if (details.getTotal() != null && PAYMENT.matcher(label).matches())
+                continue;
+
+            if (SUBTOTAL.matcher(label).matches()) {
+                details.setSubtotal(amount);
+            } else if (TAX.matcher(label).matches()) {
+                details.setTax(details.getTax() == null ? amount : details.getTax().add(amount));
+            } else if (TOTAL.matcher(label).matches()) {
+                if (details.getTotal() == null)
+                    details.setTotal(amount);
+            } else if (details.getTotal() == null) {
+                details.getItems().add(toItem(label, amount));
+            }
+        }
+
+        if (details.getTotal() == null && details.getItems().isEmpty())
+            return null;
+        return details;
+    }
+
+    /**
+     * Splits a line item label into its quantity and description. The quantity is
+     * either in front ({@code 2 x Latte}) or with the unit price at the end
+     * ({@code Latte 2 @ 4.50}), and a bare unit price after a quantity in front is
+     * dropped when it adds up to the amount.
+     */
+    private ReceiptLineItem toItem(String label, BigDecimal amount) {
+        String description = label;
+        int quantity = 1;
+
+        Matcher u = UNIT_PRICE.matcher(description);
+        if (u.find()) {
+            if (u.group(1) != null)
+                quantity = Integer.parseInt(u.group(1));
+            description = description.substring(0, u.start());
+        }
+
+        Matcher q = QUANTITY.matcher(description);
+        if (q.matches()) {
+            quantity = Integer.parseInt(q.group(1));
+            description = q.group(2);
+
+            Matcher p = TRAILING_PRICE.matcher(description);
+            if (p.find() && new BigDecimal(p.group(1)).multiply(BigDecimal.valueOf(quantity)).compareTo(amount) == 0)
+                description = description.substring(0, p.start());
+        }
+        return new ReceiptLineItem(description.trim(), Math.max(1, quantity), amount);
+    }
+
+    private boolean isMerchant(String line) {
+        return line.chars().filter(Character::isLetter).count() >= 3 && parseDate(line) == null;
+    }
+
+    /**
+     * Reads the first date on the line, along with the time if there is one.
+     *
+     * @param line The line of text.
+     * @return {@link Date} of the purchase, or null if there is no date.
+     */
+    private Date parseDate(String line) {
+        LocalDate date = null;
+        try {
+            Matcher iso = ISO_DATE.matcher(line);
+            Matcher us = US_DATE.matcher(line);
+            if (iso.find()) {
+                date = LocalDate.of(Integer.parseInt(iso.group(1)), Integer.parseInt(iso.group(2)),
+                        Integer.parseInt(iso.group(3)));
+            } else if (us.find()) {
+                int year = Integer.parseInt(us.group(3));
+                date = LocalDate.of(year < 100 ? 2000 + year : year, Integer.parseInt(us.group(1)),
+                        Integer.parseInt(us.group(2)));
+            }
+        } catch (DateTimeException e) {
+            return null;
+        }
+        if (date == null)
+            return null;
+
+        LocalTime time = LocalTime.MIDNIGHT;
+        Matcher t = TIME.matcher(line);
+        if (t.find()) {
+            int hour = Integer.parseInt(t.group(1));
+            String half = t.group(4);
+            if (half != null && half.equalsIgnoreCase("pm") && hour < 12)
+                hour += 12;
+            else if (half != null && half.equalsIgnoreCase("am") && hour == 12)
+                hour = 0;
+
+            if (hour < 24 && Integer.parseInt(t.group(2)) < 60)
+                time = LocalTime.of(hour, Integer.parseInt(t.group(2)),
+                        t.group(3) == null ? 0 : Math.min(59, Integer.parseInt(t.group(3))));
+        }
+        return Date.from(LocalDateTime.of(date, time).atZone(ZoneId.systemDefault()).toInstant());
+    }
+}
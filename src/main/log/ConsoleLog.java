@@ -0,0 +1,64 @@
+package main.log;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Console output of the reader. Third party libraries print to
+ * {@code System.out}, so {@link #silenceSystemOut()} points it at a stream that
+ * throws the output away, and the reader's own lines are written straight to
+ * the console. {@code System.out} is never swapped back and forth, so receipts
+ * running at the same time can not lose or leak each other's output.
+ */
+public final class ConsoleLog {
+    private static final PrintStream OUT = new PrintStream(new FileOutputStream(FileDescriptor.out), true);
+    private static final PrintStream ERR = new PrintStream(new FileOutputStream(FileDescriptor.err), true);
+    private static final PrintStream DISABLED = new PrintStream(OutputStream.nullOutputStream());
+
+    private final String source;
+
+    /**
+     * Creates the log for the given class name, which starts each line.
+     *
+     * @param source The name of the class logging.
+     */
+    public ConsoleLog(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Throws away anything printed to {@code System.out} from now on.
+     */
+    public static void silenceSystemOut() {
+        System.setOut(DISABLED);
+    }
+
+    /**
+     * Prints the given string to the console.
+     *
+     * @param str The string to display.
+     */
+    public void info(String str) {
+        OUT.println(String.format("[%s] INFO digital-receipt-reader-pi: %s", source, str));
+    }
+
+    /**
+     * Prints the given warning to the error stream.
+     *
+     * @param str The string to display.
+     */
+    public void warn(String str) {
+        ERR.println(String.format("[%s] WARN digital-receipt-reader-pi: %s", source, str));
+    }
+
+    /**
+     * Prints the given error to the error stream.
+     *
+     * @param str The string to display.
+     */
+    public void error(String str) {
+        ERR.println(String.format("[%s] ERROR digital-receipt-reader-pi: %s", source, str));
+    }
+}
@@ -1,44 +1,320 @@
 package main.python;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.log.ConsoleLog;
+import main.watch.StallWatchdog;
+import main.watch.StallWatchdog.Heartbeat;
 
 /**
  * Python class to execute the tag writer script to write files to a tag.
  * 
+ * There is only one tag, so receipts take turns writing to it. Receipts are
+ * ranked by their arrival, the order their print jobs landed in, rather than by
+ * their id, since ids are not always handed out in that order. The newest
+ * receipt always goes first. Once the receipt on the tag has been held for the
+ * minimum hold time a newer receipt cuts the rest of its hold short, and any
+ * older receipt still waiting for the tag is skipped, since that customer has
+ * already left the counter. A receipt older than the one on the tag waits for
+ * the whole hold. Skipped writes are counted and reported to the caller.
+ * 
  * @author Seth Hancock
  * @since November 9, 2021
  */
 public class NfcTagWriter {
-    private String BASE_PATH = "/home/pi/Desktop/Digital Receipt/raspberrypi/python/";
-    private String scriptTagWrite = BASE_PATH + "receipt__write_tag.py";
-    private String scriptTagClear = BASE_PATH + "receipt__clear_tag.py";
 
     /**
-     * Method to write the given id to the tag. If the id can not be formated to a
-     * hex value than it will error and exit the program. Otherwise it will write
-     * the tag and continue running.
+     * The payload written to the tag. The tag script on the reader only takes the
+     * legacy 4 byte argument list, so {@link #V1} should only be turned on once it
+     * has been updated to take a variable number of bytes.
+     */
+    public enum TagFormat {
+        /** The receipt id as 4 bytes. */
+        LEGACY,
+        /** The versioned {@link TagPayload} with the public id. */
+        V1;
+
+        public static TagFormat of(String value) {
+            for (TagFormat f : values())
+                if (f.name().equalsIgnoreCase(value))
+                    return f;
+            throw new IllegalArgumentException(String.format("Unknown tag format '%s', expected legacy or v1", value));
+        }
+    }
+
+    private static final ConsoleLog log = new ConsoleLog("WatchDir");
+    private static final String SCRIPT_TAG_WRITE = "receipt__write_tag.py";
+    private static final String SCRIPT_TAG_CLEAR = "receipt__clear_tag.py";
+    private static final int SCRIPT_ATTEMPTS = 2;
+
+    private volatile String basePath = "/home/pi/Desktop/Digital Receipt/raspberrypi/python/";
+    private volatile long tagHoldMillis = 30000;
+    private volatile long tagMinHoldMillis = 5000;
+    private volatile long scriptTimeoutMillis = 120000;
+    private volatile TagFormat tagFormat = TagFormat.LEGACY;
+    private StallWatchdog watchdog;
+
+    // A lock rather than synchronized so a receipt holding the tag on a virtual
+    // thread does not pin its carrier thread for the whole hold
+    private final ReentrantLock tagLock = new ReentrantLock();
+    private final Condition tagChanged = tagLock.newCondition();
+    private final TreeSet<Long> waiting = new TreeSet<Long>();
+    private boolean tagBusy;
+    private final AtomicInteger skippedWrites = new AtomicInteger();
+
+    /**
+     * Sets the directory that the tag scripts are in.
+     * 
+     * @param basePath The directory of the python scripts.
+     * @throws IllegalArgumentException If either tag script is not in the
+     *                                  directory, the current directory is kept.
+     */
+    public void setScriptDir(String basePath) {
+        String dir = basePath.endsWith("/") ? basePath : basePath + "/";
+        for (String script : new String[] { SCRIPT_TAG_WRITE, SCRIPT_TAG_CLEAR }) {
+            if (!new File(dir + script).isFile())
+                throw new IllegalArgumentException(String.format("File does not exist: %s", dir + script));
+        }
+        this.basePath = dir;
+    }
+
+    /**
+     * Sets how long the tag is held for the customer to read before it is cleared.
+     * 
+     * @param tagHoldMillis The hold time in milliseconds.
+     */
+    public void setTagHoldMillis(long tagHoldMillis) {
+        this.tagHoldMillis = tagHoldMillis;
+    }
+
+    /**
+     * Sets how long the tag is held for before a newer receipt can take it over.
+     * 
+     * @param tagMinHoldMillis The minimum hold time in milliseconds.
+     */
+    public void setTagMinHoldMillis(long tagMinHoldMillis) {
+        this.tagMinHoldMillis = tagMinHoldMillis;
+    }
+
+    /**
+     * @return {@link int} of the number of writes skipped for a newer receipt.
+     */
+    public int getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    /**
+     * Sets how long a tag script can go without printing anything before it is
+     * killed. The write script waits quietly while there is no tag on the reader,
+     * so this needs to be longer than a tag can be away for.
+     * 
+     * @param scriptTimeoutMillis The script timeout in milliseconds, 0 to never
+     *                            kill the script.
+     */
+    public void setScriptTimeoutMillis(long scriptTimeoutMillis) {
+        this.scriptTimeoutMillis = scriptTimeoutMillis;
+    }
+
+    /**
+     * Sets the payload format written by {@link #write(int, String, long)}.
+     * 
+     * @param tagFormat The format of the tag payload.
+     */
+    public void setTagFormat(TagFormat tagFormat) {
+        this.tagFormat = tagFormat;
+    }
+
+    /**
+     * Sets the watchdog the tag scripts report their progress to. A script that
+     * stalls is killed by the watchdog and run again.
+     * 
+     * @param watchdog The watchdog to report to.
+     */
+    public void setWatchdog(StallWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Method to write the given id to the tag using the legacy 4 byte format. If
+     * the id can not be formated to a hex value than it will error and exit the
+     * program. Otherwise it will write the tag and continue running.
+     * 
+     * @param receiptId The id to write the nfc tag.
+     * @param arrival   The arrival of the receipt, later receipts have a higher
+     *                  arrival.
+     * @return {@link Boolean} if the id was written, false if it was skipped for a
+     *         newer receipt or the write script did not finish.
+     */
+    public boolean write(int receiptId, long arrival) {
+        if (!acquireTag(receiptId, arrival))
+            return false;
+
+        try {
+            printConsole(String.format("Writing Receipt ID '%d' to Tag...", receiptId));
+            return writeTag(arrival, formatIntToHex(receiptId));
+        } finally {
+            releaseTag();
+        }
+    }
+
+    /**
+     * Method to write the given id and public id to the tag as a versioned
+     * {@link TagPayload}. This lets the app find the file on cloudinary without
+     * having to look up the public id from the backend. While the tag format is
+     * {@link TagFormat#LEGACY} only the id is written, in the legacy format.
      * 
      * @param receiptId The id to write the nfc tag.
+     * @param publicId  The cloudinary public id of the receipt, null if the file
+     *                  is not uploaded.
+     * @param arrival   The arrival of the receipt, later receipts have a higher
+     *                  arrival.
+     * @return {@link Boolean} if the id was written, false if it was skipped for a
+     *         newer receipt or the write script did not finish.
+     */
+    public boolean write(int receiptId, String publicId, long arrival) {
+        if (tagFormat == TagFormat.LEGACY)
+            return write(receiptId, arrival);
+        if (!acquireTag(receiptId, arrival))
+            return false;
+
+        try {
+            printConsole(String.format("Writing Receipt ID '%d' (%s) to Tag...", receiptId, publicId));
+            return writeTag(arrival, TagPayload.toHex(TagPayload.of(receiptId, publicId).encode()));
+        } finally {
+            releaseTag();
+        }
+    }
+
+    /**
+     * Waits for the tag to be free. If a newer receipt shows up while waiting then
+     * this receipt gives up its turn.
+     * 
+     * @param receiptId The id of the receipt that wants the tag.
+     * @param arrival   The arrival of the receipt that wants the tag.
+     * @return {@link Boolean} if the tag was acquired.
+     */
+    private boolean acquireTag(int receiptId, long arrival) {
+        tagLock.lock();
+        try {
+            waiting.add(arrival);
+            tagChanged.signalAll();
+
+            try {
+                while (tagBusy || waiting.last() != arrival) {
+                    if (waiting.last() != arrival) {
+                        skippedWrites.incrementAndGet();
+                        log.warn(String.format("Skipping Tag write for Receipt ID '%d', a newer receipt is waiting.",
+                                receiptId));
+                        return false;
+                    }
+                    tagChanged.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.remove(arrival);
+            }
+
+            tagBusy = true;
+            return true;
+        } finally {
+            tagLock.unlock();
+        }
+    }
+
+    /**
+     * Frees the tag for the next receipt.
+     */
+    private void releaseTag() {
+        tagLock.lock();
+        try {
+            tagBusy = false;
+            tagChanged.signalAll();
+        } finally {
+            tagLock.unlock();
+        }
+    }
+
+    /**
+     * Holds the tag for the customer to read. The hold ends early if a newer
+     * receipt is waiting for the tag, but never before the minimum hold.
+     * 
+     * @param arrival    The arrival of the receipt on the tag.
+     * @param holdMillis How long to hold the tag for.
+     * @return {@link Boolean} if the hold was cut short by a newer receipt.
      */
-    public void write(int receiptId) {
-        printConsole(String.format("Writing Receipt ID '%d' to Tag...", receiptId));
-        writeTagData(formatIntToHex(receiptId));
+    private boolean holdTag(long arrival, long holdMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long hold = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+        long minHold = Math.min(hold, TimeUnit.MILLISECONDS.toNanos(tagMinHoldMillis));
+
+        tagLock.lock();
+        try {
+            while (true) {
+                long elapsed = System.nanoTime() - start;
+                boolean newer = !waiting.isEmpty() && waiting.last() > arrival;
+                if (newer && elapsed >= minHold)
+                    return true;
+                if (elapsed >= hold)
+                    return false;
+                tagChanged.awaitNanos((newer ? minHold : hold) - elapsed);
+            }
+        } finally {
+            tagLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the hex values to the tag, holds it for the customer to read and then
+     * clears the tag. If the write script did not finish the tag may hold part of
+     * the payload, so it is cleared straight away.
+     * 
+     * @param arrival   The arrival of the receipt being written.
+     * @param hexValues The payload bytes formatted as hex.
+     * @return {@link Boolean} if the write script finished.
+     */
+    private boolean writeTag(long arrival, String[] hexValues) {
+        if (!writeTagData(hexValues)) {
+            printConsole("Write to Tag Failed!");
+            boolean cancelled = Thread.interrupted();
+            clearTag();
+            if (cancelled)
+                Thread.currentThread().interrupt();
+            return false;
+        }
         printConsole("Write to Tag Complete!");
 
-        printConsole("Waiting 30 seconds for Tag read.");
+        long holdMillis = tagHoldMillis;
+        boolean cancelled = false;
+        printConsole(String.format("Waiting %d seconds for Tag read.", holdMillis / 1000));
         try {
-            Thread.sleep(30000);
+            if (holdTag(arrival, holdMillis)) {
+                // The next receipt overwrites the tag so there is no need to clear it
+                printConsole("Newer receipt waiting, handing over the Tag.");
+                return true;
+            }
         } catch (InterruptedException e) {
-            printConsole("ERROR: Could not sleep");
+            // The write was cancelled, clear the tag before passing the interrupt on
+            printConsole("Tag write cancelled.");
+            cancelled = true;
         }
 
         printConsole("Clearing Tag data...");
         clearTag();
         printConsole("Tag Clear Complete!");
-
+        if (cancelled)
+            Thread.currentThread().interrupt();
+        return true;
     }
 
     /**
@@ -48,7 +324,7 @@ public class NfcTagWriter {
      * @param v The value to parse as a 4 byte hex.
      * @return {@link String[]} of the hex values.
      */
-    private String[] formatIntToHex(int v) {
+    static String[] formatIntToHex(int v) {
         String[] hexValues = new String[4];
 
         hexValues[0] = Integer.toHexString((v & 0xFF000000) >> 24);
@@ -60,37 +336,97 @@ public class NfcTagWriter {
     }
 
     /**
-     * Execute the python script with the given hex value arguments. If an error
-     * occurs than it will break and print to the console that an error has occured.
+     * Execute the python script with the given hex value arguments, one argument
+     * per byte. If an error occurs than it will break and print to the console that
+     * an error has occured.
      * 
      * @param args The hex values to write to the tag.
+     * @return {@link Boolean} if the script exited cleanly.
      */
-    private void writeTagData(String[] args) {
+    private boolean writeTagData(String[] args) {
+        String scriptTagWrite = basePath + SCRIPT_TAG_WRITE;
         doesFileExist(scriptTagWrite);
-        String[] cmd = { "python3", scriptTagWrite, args[0], args[1], args[2], args[3] };
+        String[] cmd = new String[args.length + 2];
+        cmd[0] = "python3";
+        cmd[1] = scriptTagWrite;
+        System.arraycopy(args, 0, cmd, 2, args.length);
 
-        try {
-            Process p = Runtime.getRuntime().exec(cmd);
-            outputScriptConsole(new BufferedReader(new InputStreamReader(p.getInputStream())));
-        } catch (IOException e) {
-            printConsole("Error Running Pythong Script!");
-        }
+        return runScript("nfc-write", cmd);
     }
 
     /**
-     * This will clear the receipt id off of the tag. This will get called once 30
-     * seconds have passed.
+     * This will clear the receipt id off of the tag. This will get called once the
+     * tag hold time has passed.
      */
     private void clearTag() {
+        String scriptTagClear = basePath + SCRIPT_TAG_CLEAR;
         doesFileExist(scriptTagClear);
         String[] cmd = { "python3", scriptTagClear };
 
-        try {
-            Process p = Runtime.getRuntime().exec(cmd);
-            outputScriptConsole(new BufferedReader(new InputStreamReader(p.getInputStream())));
-        } catch (IOException e) {
-            printConsole("Error Running Pythong Script!");
+        runScript("nfc-clear", cmd);
+    }
+
+    /**
+     * Runs the python script and prints its output. Each line of output counts as
+     * progress for the watchdog, if the script goes quiet for too long the watchdog
+     * kills it. Without a watchdog the script is still killed if it has not exited
+     * by the timeout once its output closes. Either way a killed script is run one
+     * more time.
+     * 
+     * @param stage The name of the stage reported to the watchdog.
+     * @param cmd   The command to run.
+     * @return {@link Boolean} if the script exited with a zero exit code, false if
+     *         it failed, was killed on every attempt or was interrupted.
+     */
+    private boolean runScript(String stage, String[] cmd) {
+        for (int attempt = 1; attempt <= SCRIPT_ATTEMPTS; attempt++) {
+            long timeout = scriptTimeoutMillis;
+            Heartbeat hb = watchdog == null ? null : watchdog.begin(stage, timeout);
+            Process p = null;
+            boolean killed = false;
+
+            try {
+                p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+                if (hb != null)
+                    hb.attach(p);
+
+                outputScriptConsole(new BufferedReader(new InputStreamReader(p.getInputStream())), hb);
+                if (timeout <= 0) {
+                    p.waitFor();
+                } else if (!p.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                    p.destroyForcibly();
+                    killed = true;
+                }
+            } catch (IOException e) {
+                printConsole("Error Running Pythong Script!");
+                return false;
+            } catch (InterruptedException e) {
+                // Only an interrupt from the watchdog is retried
+                if (hb == null || !hb.isStalled()) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } finally {
+                if (p != null && p.isAlive())
+                    p.destroyForcibly();
+                if (hb != null)
+                    hb.end();
+            }
+
+            if (hb != null && hb.isStalled()) {
+                Thread.interrupted();
+                killed = true;
+            }
+            if (!killed) {
+                if (p.exitValue() == 0)
+                    return true;
+                log.warn(String.format("%s script failed with exit code %d", stage, p.exitValue()));
+                return false;
+            }
+
+            log.warn(String.format("%s script stalled (attempt %d of %d)", stage, attempt, SCRIPT_ATTEMPTS));
         }
+        return false;
     }
 
     /**
@@ -98,12 +434,15 @@ public class NfcTagWriter {
      * there is an error than no logs will printed out.
      * 
      * @param br The buffered reader to loop through.
+     * @param hb The heartbeat to beat for each line, can be null.
      * @throws IOException If the buffered reader can not be opened.
      */
-    private void outputScriptConsole(BufferedReader br) throws IOException {
+    private void outputScriptConsole(BufferedReader br, Heartbeat hb) throws IOException {
         String s = "";
         while ((s = br.readLine()) != null) { // read in the output from the python script
             printConsole(s);
+            if (hb != null)
+                hb.beat();
         }
     }
 
@@ -121,13 +460,11 @@ public class NfcTagWriter {
     }
 
     /**
-     * This will print the given string to the console. It will enable it so it can
-     * print to the console and the disable it so that no other logs from third part
-     * libaries are printing to the console.
+     * This will print the given string to the console.
      * 
      * @param str The string to display to the console.
      */
     private void printConsole(String str) {
-        System.out.println(String.format("[WatchDir] INFO digital-receipt-reader-pi: %s", str));
+        log.info(str);
     }
 }
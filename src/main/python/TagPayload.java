@@ -0,0 +1,251 @@
+package main.python;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binary payload that gets written to the NFC tag. The payload is self
+ * describing so that the mobile app can resolve the cloudinary public id
+ * straight from the tag without having to ask the backend for it first.
+ *
+ * <pre>
+ * Version 1 layout:
+ *   [0]     header   high nibble = version, low nibble = flags
+ *   [1..n]  varint   receipt id
+ *   [..]    varint   public id sequence   (FLAG_STRUCTURED, unless
+ *                    FLAG_SEQUENCE_IS_ID says it equals the receipt id)
+ *   [..]    5 bytes  public id key        (FLAG_STRUCTURED)
+ *   [..]    4 bytes  FNV-1a public id hash (FLAG_HASHED)
+ *   [last]  crc-8    of all previous bytes
+ * </pre>
+ *
+ * The legacy payload is the receipt id as 4 raw bytes with no header or
+ * checksum, it is still accepted by {@link #decode(byte[])}.
+ */
+public class TagPayload {
+    public static final int VERSION = 1;
+    public static final int LEGACY_LENGTH = 4;
+
+    private static final int FLAG_STRUCTURED = 0x01;
+    private static final int FLAG_HASHED = 0x02;
+    private static final int FLAG_SEQUENCE_IS_ID = 0x04;
+    private static final Pattern PUBLIC_ID = Pattern.compile("receipt_(\\d{1,18})_(\\d{10})");
+    private static final long MAX_KEY = 0xFF_FFFF_FFFFL;
+
+    private final int version;
+    private final int receiptId;
+    private final String publicId;
+    private final int publicIdHash;
+
+    private TagPayload(int version, int receiptId, String publicId, int publicIdHash) {
+        this.version = version;
+        this.receiptId = receiptId;
+        this.publicId = publicId;
+        this.publicIdHash = publicIdHash;
+    }
+
+    /**
+     * Builds the payload for the given receipt id and public id.
+     *
+     * @param receiptId The id of the receipt in the database.
+     * @param publicId  The cloudinary public id of the receipt, can be null.
+     * @return {@link TagPayload} for the receipt.
+     */
+    public static TagPayload of(int receiptId, String publicId) {
+        return new TagPayload(VERSION, receiptId, publicId, publicId == null ? 0 : fnv1a(publicId));
+    }
+
+    /**
+     * Encodes the payload into the version 1 binary format. Public ids in the
+     * format {@code receipt_<sequence>_<key>} are stored in full, any other
+     * public id is stored as a 4 byte hash. A versioned payload is never 4 bytes
+     * long so it can not be confused with the legacy format.
+     *
+     * @return {@link byte[]} of the encoded payload.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        Matcher m = publicId == null ? null : PUBLIC_ID.matcher(publicId);
+
+        if (m != null && m.matches() && Long.parseLong(m.group(2)) <= MAX_KEY) {
+            long sequence = Long.parseLong(m.group(1));
+            boolean sequenceIsId = sequence == Integer.toUnsignedLong(receiptId);
+
+            out.write((VERSION << 4) | FLAG_STRUCTURED | (sequenceIsId ? FLAG_SEQUENCE_IS_ID : 0));
+            writeVarint(out, Integer.toUnsignedLong(receiptId));
+            if (!sequenceIsId)
+                writeVarint(out, sequence);
+            writeFixed(out, Long.parseLong(m.group(2)), 5);
+        } else {
+            out.write((VERSION << 4) | FLAG_HASHED);
+            writeVarint(out, Integer.toUnsignedLong(receiptId));
+            writeFixed(out, Integer.toUnsignedLong(publicIdHash), 4);
+        }
+
+        out.write(crc8(out.toByteArray(), out.size()));
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes only the receipt id as 4 raw bytes, the format written to tags
+     * before the payload was versioned.
+     *
+     * @return {@link byte[]} of the legacy payload.
+     */
+    public byte[] encodeLegacy() {
+        return new byte[] { (byte) (receiptId >>> 24), (byte) (receiptId >>> 16), (byte) (receiptId >>> 8),
+                (byte) receiptId };
+    }
+
+    /**
+     * Decodes a payload read off of a tag. A 4 byte payload is treated as the
+     * legacy format, anything else has to be a valid versioned payload.
+     *
+     * @param data The bytes read from the tag.
+     * @return {@link TagPayload} of the decoded data.
+     * @throws IllegalArgumentException If the payload is corrupt or of an unknown
+     *                                  version.
+     */
+    public static TagPayload decode(byte[] data) {
+        if (data == null || data.length < 2)
+            throw new IllegalArgumentException("Tag payload is too short");
+
+        if (data.length == LEGACY_LENGTH) {
+            int id = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+            return new TagPayload(0, id, null, 0);
+        }
+
+        if (crc8(data, data.length - 1) != (data[data.length - 1] & 0xFF))
+            throw new IllegalArgumentException("Tag payload checksum mismatch");
+
+        int version = (data[0] & 0xFF) >>> 4;
+        int flags = data[0] & 0x0F;
+        if (version != VERSION)
+            throw new IllegalArgumentException(String.format("Unsupported tag payload version %d", version));
+
+        int[] pos = { 1 };
+        int end = data.length - 1;
+        int receiptId = (int) readVarint(data, pos, end);
+
+        if ((flags & FLAG_STRUCTURED) != 0) {
+            long sequence = (flags & FLAG_SEQUENCE_IS_ID) != 0 ? Integer.toUnsignedLong(receiptId)
+                    : readVarint(data, pos, end);
+            long key = readFixed(data, pos, 5, end);
+            String publicId = String.format("receipt_%d_%010d", sequence, key);
+            return new TagPayload(version, receiptId, publicId, fnv1a(publicId));
+        } else if ((flags & FLAG_HASHED) != 0) {
+            return new TagPayload(version, receiptId, null, (int) readFixed(data, pos, 4, end));
+        }
+        throw new IllegalArgumentException(String.format("Unknown tag payload flags %d", flags));
+    }
+
+    /**
+     * Formats the given bytes as zero padded hex strings, one per byte, so they
+     * can be passed as arguments to the tag writer script.
+     *
+     * @param data The bytes to format.
+     * @return {@link String[]} of the hex values.
+     */
+    public static String[] toHex(byte[] data) {
+        String[] hexValues = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            hexValues[i] = String.format("%02x", data[i] & 0xFF);
+        }
+        return hexValues;
+    }
+
+    /**
+     * Checks if the given public id matches what was stored on the tag. Payloads
+     * that only store a hash are compared against the hash.
+     *
+     * @param candidate The public id to check.
+     * @return {@link Boolean} if the public id matches.
+     */
+    public boolean matchesPublicId(String candidate) {
+        if (candidate == null || (publicId == null && publicIdHash == 0))
+            return false;
+        return publicId != null ? publicId.equals(candidate) : publicIdHash == fnv1a(candidate);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getReceiptId() {
+        return receiptId;
+    }
+
+    public String getPublicId() {
+        return publicId;
+    }
+
+    public int getPublicIdHash() {
+        return publicIdHash;
+    }
+
+    public boolean isLegacy() {
+        return version == 0;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarint(byte[] data, int[] pos, int end) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= end)
+                throw new IllegalArgumentException("Tag payload is truncated");
+            int b = data[pos[0]++] & 0xFF;
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IllegalArgumentException("Tag payload varint is too long");
+    }
+
+    private static void writeFixed(ByteArrayOutputStream out, long v, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write((int) (v >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    private static long readFixed(byte[] data, int[] pos, int bytes, int end) {
+        if (pos[0] + bytes > end)
+            throw new IllegalArgumentException("Tag payload is truncated");
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v = (v << 8) | (data[pos[0]++] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * CRC-8 with the polynomial 0x07 over the first {@code length} bytes.
+     */
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+
+    private static int fnv1a(String s) {
+        int hash = 0x811C9DC5;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,291 @@
+package main.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import main.log.ConsoleLog;
+
+/**
+ * Small HTTP server that lets phones on the store network fetch a receipt
+ * straight from the reader while the cloudinary upload is still running.
+ * Recently processed receipts are kept in an LRU cache keyed by public id, small
+ * receipts are held in memory and larger ones are read from the spool file for
+ * each request and copied into the response.
+ *
+ * Every link is signed and only valid for a short time:
+ *
+ * <pre>
+ * GET /receipt/{publicId}?exp={epochSeconds}&amp;sig={hmac}
+ * </pre>
+ *
+ * where {@code sig} is the url safe base64 HMAC-SHA256 of
+ * {@code publicId + "." + exp}. The secret has to be shared with the backend and
+ * stay the same across restarts, so there is no default for it.
+ */
+public class ReceiptServer {
+    private static final ConsoleLog log = new ConsoleLog("ReceiptServer");
+    private static final String PATH = "/receipt/";
+    private static final String HMAC = "HmacSHA256";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] secret;
+    private final LinkedHashMap<String, CachedReceipt> cache = new LinkedHashMap<String, CachedReceipt>(16, 0.75f,
+            true);
+
+    private volatile long urlTtlSeconds = 300;
+    private volatile int maxEntries = 64;
+    private volatile long maxCachedBytes = 8 * 1024 * 1024;
+    private volatile long maxInMemoryFileBytes = 256 * 1024;
+    private long cachedBytes;
+
+    /**
+     * Creates the server bound to the given address. The server is not started
+     * until {@link #start()} is called.
+     *
+     * @param address The address to listen on.
+     * @param threads The number of threads serving requests.
+     * @param secret  The key used to sign links.
+     * @throws IOException If the address can not be bound.
+     */
+    public ReceiptServer(InetSocketAddress address, int threads, String secret) throws IOException {
+        this.secret = Objects.requireNonNull(secret, "secret").getBytes(StandardCharsets.UTF_8);
+        this.server = HttpServer.create(address, 0);
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, String.format("receipt-server-%d", count.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        });
+
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+        log.info(String.format("Serving receipts on port %d", getPort()));
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Adds a processed receipt so it can be served. Receipts small enough are read
+     * into memory so they can still be served after the spool file is archived.
+     *
+     * @param publicId The public id of the receipt.
+     * @param file     The spool file of the receipt.
+     */
+    public void register(String publicId, Path file) {
+        byte[] bytes = null;
+        try {
+            if (Files.size(file) <= maxInMemoryFileBytes)
+                bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            log.warn(String.format("Could not cache %s: %s", file, e.getMessage()));
+        }
+
+        synchronized (cache) {
+            CachedReceipt old = cache.put(publicId, new CachedReceipt(file, bytes));
+            if (old != null && old.bytes != null)
+                cachedBytes -= old.bytes.length;
+            if (bytes != null)
+                cachedBytes += bytes.length;
+            evict();
+        }
+    }
+
+    /**
+     * Creates a signed link to the receipt that is valid for the url time to live.
+     *
+     * @param publicId The public id of the receipt.
+     * @return {@link String} of the path and query of the link.
+     */
+    public String signedPath(String publicId) {
+        long exp = System.currentTimeMillis() / 1000 + urlTtlSeconds;
+        return String.format("%s%s?exp=%d&sig=%s", PATH, publicId, exp, sign(publicId, exp));
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void setUrlTtlSeconds(long urlTtlSeconds) {
+        this.urlTtlSeconds = urlTtlSeconds;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public void setMaxCachedBytes(long maxCachedBytes) {
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    public void setMaxInMemoryFileBytes(long maxInMemoryFileBytes) {
+        this.maxInMemoryFileBytes = maxInMemoryFileBytes;
+    }
+
+    /**
+     * Handles a request for a receipt. The signature is checked before anything
+     * is read from the cache so unsigned requests cost next to nothing.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                send(exchange, 405);
+                return;
+            }
+
+            URI uri = exchange.getRequestURI();
+            String publicId = uri.getPath().substring(PATH.length());
+            Map<String, String> query = parseQuery(uri.getRawQuery());
+
+            long exp;
+            try {
+                exp = Long.parseLong(query.getOrDefault("exp", ""));
+            } catch (NumberFormatException e) {
+                send(exchange, 403);
+                return;
+            }
+
+            if (!verify(publicId, exp, query.get("sig"))) {
+                send(exchange, 403);
+                return;
+            }
+            if (exp < System.currentTimeMillis() / 1000) {
+                send(exchange, 410);
+                return;
+            }
+
+            CachedReceipt receipt;
+            synchronized (cache) {
+                receipt = cache.get(publicId);
+            }
+            if (receipt == null) {
+                send(exchange, 404);
+                return;
+            }
+
+            serve(exchange, receipt, "HEAD".equals(method));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange, CachedReceipt receipt, boolean headOnly) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        exchange.getResponseHeaders().set("Cache-Control", "private, max-age=60");
+
+        if (receipt.bytes != null) {
+            exchange.sendResponseHeaders(200, headOnly ? -1 : receipt.bytes.length);
+            if (!headOnly) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(receipt.bytes);
+                }
+            }
+            return;
+        }
+
+        if (!Files.exists(receipt.file)) {
+            send(exchange, 404);
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, headOnly ? -1 : Files.size(receipt.file));
+        if (!headOnly) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                Files.copy(receipt.file, out);
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * Drops the least recently used receipts until the cache is back under its
+     * limits. Must be called while holding the cache lock.
+     */
+    private void evict() {
+        Iterator<CachedReceipt> it = cache.values().iterator();
+        while (it.hasNext() && (cache.size() > maxEntries || cachedBytes > maxCachedBytes)) {
+            CachedReceipt r = it.next();
+            if (r.bytes != null)
+                cachedBytes -= r.bytes.length;
+            it.remove();
+        }
+    }
+
+    private String sign(String publicId, long exp) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            byte[] sig = mac.doFinal(String.format("%s.%d", publicId, exp).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(sig);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("Could not sign receipt link", e);
+        }
+    }
+
+    private boolean verify(String publicId, long exp, String sig) {
+        if (sig == null)
+            return false;
+        return MessageDigest.isEqual(sign(publicId, exp).getBytes(StandardCharsets.US_ASCII),
+                sig.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        if (query == null)
+            return params;
+
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        return params;
+    }
+
+    /**
+     * A receipt in the cache, the bytes are null when it is served from its file.
+     */
+    private static class CachedReceipt {
+        private final Path file;
+        private final byte[] bytes;
+
+        private CachedReceipt(Path file, byte[] bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+}
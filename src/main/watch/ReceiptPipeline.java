@@ -0,0 +1,444 @@
+package main.watch;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.log.ConsoleLog;
+import main.watch.StallWatchdog.Heartbeat;
+
+/**
+ * Runs each receipt as its own task so that the blocking calls of one receipt
+ * do not hold up the next print job. There are three modes:
+ *
+ * <ul>
+ * <li>{@link Mode#SERIAL} runs everything on the calling thread, the way the
+ * watcher always has.</li>
+ * <li>{@link Mode#PLATFORM} runs receipts and their stages on fixed pools of
+ * platform threads.</li>
+ * <li>{@link Mode#VIRTUAL} gives every receipt and every stage its own virtual
+ * thread. This needs JDK 21, on older JDKs it falls back to
+ * {@link Mode#PLATFORM}.</li>
+ * </ul>
+ *
+ * The number of receipts in flight is capped in every mode, {@link #submit}
+ * blocks the watcher until a slot frees up.
+ */
+public class ReceiptPipeline {
+    private static final ConsoleLog log = new ConsoleLog("ReceiptPipeline");
+
+    public enum Mode {
+        SERIAL, PLATFORM, VIRTUAL;
+
+        public static Mode of(String value) {
+            for (Mode m : values())
+                if (m.name().equalsIgnoreCase(value))
+                    return m;
+            throw new IllegalArgumentException(
+                    String.format("Unknown executor '%s', expected serial, platform or virtual", value));
+        }
+    }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final ExecutorService stageExecutor;
+    private final ResizableSemaphore inFlight;
+    private volatile int maxInFlight;
+    private volatile int stageThreads;
+    private final AtomicInteger receiptReplacements = new AtomicInteger();
+    private final AtomicInteger stageReplacements = new AtomicInteger();
+    private StallWatchdog watchdog;
+
+    /**
+     * Creates the pipeline for the given mode.
+     *
+     * @param mode            How receipts should be executed.
+     * @param maxInFlight     The most receipts that can be processed at once.
+     * @param platformThreads The stage pool size used in {@link Mode#PLATFORM}.
+     */
+    public ReceiptPipeline(Mode mode, int maxInFlight, int platformThreads) {
+        ExecutorService virtual = mode == Mode.VIRTUAL ? newVirtualExecutor() : null;
+        if (mode == Mode.VIRTUAL && virtual == null) {
+            log.warn("Virtual threads need JDK 21+, falling back to platform threads.");
+            mode = Mode.PLATFORM;
+        }
+
+        this.mode = mode;
+        this.maxInFlight = mode == Mode.SERIAL ? 1 : Math.max(1, maxInFlight);
+        this.inFlight = new ResizableSemaphore(this.maxInFlight);
+        this.stageThreads = Math.max(1, platformThreads);
+
+        if (mode == Mode.VIRTUAL) {
+            this.executor = virtual;
+            this.stageExecutor = virtual;
+        } else if (mode == Mode.PLATFORM) {
+            // Stages get their own pool so receipts waiting on a join can never
+            // starve the stages they are waiting for
+            this.executor = Executors.newFixedThreadPool(this.maxInFlight, namedThreads("receipt-worker"));
+            this.stageExecutor = Executors.newFixedThreadPool(this.stageThreads, namedThreads("receipt-stage"));
+        } else {
+            this.executor = null;
+            this.stageExecutor = null;
+        }
+    }
+
+    /**
+     * Sets the watchdog that can abandon stuck receipt and stage threads. When a
+     * thread is abandoned its receipt gives up its slot and a replacement thread
+     * is added to the pool until the stuck thread returns. Threads can not be
+     * replaced in {@link Mode#SERIAL}.
+     *
+     * @param watchdog The watchdog the stages report to.
+     */
+    public void setWatchdog(StallWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Submits the receipt to be processed. This blocks until there is room for
+     * another receipt in flight. Any exception thrown by the receipt is printed,
+     * it will not stop the pipeline.
+     *
+     * @param name    The name of the receipt used when printing errors.
+     * @param receipt The work for the receipt.
+     * @throws InterruptedException       If interrupted while waiting for a slot.
+     * @throws RejectedExecutionException If the pipeline has been shut down.
+     */
+    public void submit(String name, ReceiptTask receipt) throws InterruptedException {
+        inFlight.acquire();
+
+        Runnable task = () -> {
+            long stallsBefore = watchdog == null ? 0 : watchdog.getStallCount();
+            AtomicBoolean released = new AtomicBoolean();
+            Heartbeat hb = track("receipt " + name, () -> {
+                if (released.compareAndSet(false, true)) {
+                    inFlight.release();
+                    replace(executor, receiptReplacements, 1);
+                }
+            });
+
+            try (TaskScope scope = new TaskScope()) {
+                receipt.run(scope);
+            } catch (Exception e) {
+                log.error(String.format("Receipt '%s' failed: %s", name, describe(e)));
+            } finally {
+                release(hb, executor, receiptReplacements);
+                if (released.compareAndSet(false, true))
+                    inFlight.release();
+
+                // Do not let an interrupt from the watchdog reach the watcher thread
+                if (executor == null && watchdog != null && watchdog.getStallCount() > stallsBefore)
+                    Thread.interrupted();
+            }
+        };
+
+        if (executor == null) {
+            task.run();
+            return;
+        }
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The task never ran so it can not give the slot back itself
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting receipts and waits for the ones in flight to finish.
+     *
+     * @param timeoutSeconds How long to wait for the receipts.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void shutdown(long timeoutSeconds) throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+            stageExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Changes the most receipts that can be in flight. Receipts already in flight
+     * are left to finish, lowering the limit only holds back new receipts. In
+     * {@link Mode#PLATFORM} the receipt pool is resized to match.
+     *
+     * @param max The new limit.
+     */
+    public synchronized void setMaxInFlight(int max) {
+        if (mode == Mode.SERIAL || max < 1 || max == maxInFlight)
+            return;
+
+        if (max > maxInFlight) {
+            resize(executor, max + receiptReplacements.get());
+            inFlight.release(max - maxInFlight);
+        } else {
+            inFlight.reducePermits(maxInFlight - max);
+            resize(executor, max + receiptReplacements.get());
+        }
+        maxInFlight = max;
+    }
+
+    /**
+     * Changes the number of stage threads used in {@link Mode#PLATFORM}.
+     *
+     * @param threads The new number of stage threads.
+     */
+    public synchronized void setStageThreads(int threads) {
+        if (mode == Mode.PLATFORM && threads > 0) {
+            stageThreads = threads;
+            resize(stageExecutor, threads + stageReplacements.get());
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * The work done for a single receipt. Stages that do not depend on each other
+     * can be forked on the scope so that they run side by side.
+     */
+    @FunctionalInterface
+    public interface ReceiptTask {
+        void run(TaskScope scope) throws Exception;
+    }
+
+    /**
+     * Scope that the stages of a receipt are forked in. Joining the scope waits
+     * for every stage, and the first stage to fail cancels the rest. This follows
+     * the shutdown on failure policy of the JDK's structured task scope without
+     * needing preview features. In {@link Mode#SERIAL} stages run on the calling
+     * thread in the order they are forked.
+     */
+    public class TaskScope implements AutoCloseable {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Future<?>> forks = new ArrayList<Future<?>>();
+        private Exception failure;
+
+        /**
+         * Forks the stage so it runs alongside the other stages of the receipt.
+         *
+         * @param <T>   The result of the stage.
+         * @param stage The stage to run.
+         * @return {@link Future} of the stage result, only read it after
+         *         {@link #join()}.
+         */
+        public <T> Future<T> fork(Callable<T> stage) {
+            FutureTask<T> f = new FutureTask<T>(() -> {
+                Heartbeat hb = stageExecutor == null ? null : track("stage", () -> {
+                    fail(new TimeoutException("Stage was abandoned by the watchdog"));
+                    replace(stageExecutor, stageReplacements, 1);
+                });
+
+                try {
+                    return stage.call();
+                } catch (Exception e) {
+                    fail(e);
+                    throw e;
+                } finally {
+                    release(hb, stageExecutor, stageReplacements);
+                }
+            });
+
+            lock.lock();
+            try {
+                forks.add(f);
+                if (failure != null) {
+                    f.cancel(true);
+                    return f;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (stageExecutor == null) {
+                f.run();
+            } else {
+                stageExecutor.execute(f);
+            }
+            return f;
+        }
+
+        /**
+         * Waits for all of the forked stages. If any of them failed the others are
+         * cancelled and the first failure is thrown.
+         *
+         * @throws Exception The first exception thrown by a stage.
+         */
+        public void join() throws Exception {
+            List<Future<?>> joining;
+            lock.lock();
+            try {
+                joining = new ArrayList<Future<?>>(forks);
+            } finally {
+                lock.unlock();
+            }
+
+            for (Future<?> f : joining) {
+                try {
+                    f.get();
+                } catch (CancellationException | ExecutionException e) {
+                    // The failure has already been recorded by the stage
+                } catch (InterruptedException e) {
+                    fail(e);
+                    throw e;
+                }
+            }
+
+            lock.lock();
+            try {
+                if (failure != null)
+                    throw failure;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Cancels any stage that is still running. In {@link Mode#SERIAL} the only
+         * stage that can be running is on the calling thread, which must not be
+         * interrupted or the watcher would stop on its next wait.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                for (Future<?> f : forks) {
+                    f.cancel(stageExecutor != null);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void fail(Exception e) {
+            lock.lock();
+            try {
+                if (failure == null) {
+                    failure = e;
+                    close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Semaphore that can have its permits taken away without waiting for them.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * Opens a heartbeat that never times out on its own, it is only there so the
+     * hook runs if another stage on the same thread gets abandoned.
+     */
+    private Heartbeat track(String stage, Runnable onAbandon) {
+        if (watchdog == null || executor == null)
+            return null;
+
+        Heartbeat hb = watchdog.begin(stage, 0);
+        hb.onAbandon(onAbandon);
+        return hb;
+    }
+
+    /**
+     * Ends the heartbeat, and if its thread was abandoned and has now returned
+     * takes its replacement back out of the pool.
+     */
+    private void release(Heartbeat hb, ExecutorService pool, AtomicInteger replacements) {
+        if (hb == null)
+            return;
+
+        hb.end();
+        if (hb.isAbandoned())
+            replace(pool, replacements, -1);
+    }
+
+    private synchronized void replace(ExecutorService pool, AtomicInteger replacements, int delta) {
+        int base = pool == executor ? maxInFlight : stageThreads;
+        resize(pool, base + replacements.addAndGet(delta));
+    }
+
+    private static void resize(ExecutorService executor, int threads) {
+        if (!(executor instanceof ThreadPoolExecutor))
+            return;
+
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Creates the virtual thread per task executor through reflection so that the
+     * code still builds and runs on JDKs before 21.
+     *
+     * @return {@link ExecutorService} of virtual threads, or null if not
+     *         supported.
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, String.format("%s-%d", prefix, count.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static String describe(Exception e) {
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+}
@@ -0,0 +1,291 @@
+package main.watch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import main.log.ConsoleLog;
+import main.watch.ReceiptPipeline.ReceiptTask;
+
+/**
+ * Admission control in front of the {@link ReceiptPipeline}. New receipts are
+ * queued without blocking the watcher and handed to the pipeline newest first,
+ * so the customer standing at the counter gets their receipt before the
+ * pipeline catches up on older ones.
+ *
+ * Only a bounded number of receipts are kept in memory. When a burst goes past
+ * that the oldest waiting receipts are spilled to a file on disk, which only
+ * needs to hold their paths since the receipts themselves are already on disk.
+ * Spilled receipts are read back once the in memory queue is empty, and any
+ * left over after a restart are picked up on start.
+ *
+ * Every receipt is numbered in the order it arrived. Receipts are handed out
+ * newest first, so anything done in dispatch order, like taking a receipt id,
+ * runs backwards. Work that has to know which of two receipts is newer, like
+ * who gets the tag, ranks them by their arrival instead.
+ */
+public class ReceiptScheduler {
+    private static final ConsoleLog log = new ConsoleLog("ReceiptScheduler");
+    private final ReceiptPipeline pipeline;
+    private final BiFunction<Path, Long, ReceiptTask> work;
+    private final Path spillFile;
+    private final LinkedBlockingDeque<Path> queue = new LinkedBlockingDeque<Path>();
+    private final Set<Path> dispatched = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Path, Long> arrivals = new ConcurrentHashMap<Path, Long>();
+    private final AtomicLong lastArrival = new AtomicLong();
+    private volatile int queueBound;
+    private volatile boolean stopping;
+    private Thread dispatcher;
+
+    /**
+     * Creates the scheduler for the given pipeline.
+     *
+     * @param pipeline   The pipeline to hand receipts to.
+     * @param work       Creates the work for a receipt from its path and arrival.
+     * @param spillFile  The file to spill waiting receipts to.
+     * @param queueBound The most receipts to keep waiting in memory.
+     */
+    public ReceiptScheduler(ReceiptPipeline pipeline, BiFunction<Path, Long, ReceiptTask> work, Path spillFile,
+            int queueBound) {
+        this.pipeline = pipeline;
+        this.work = work;
+        this.spillFile = spillFile;
+        this.queueBound = Math.max(1, queueBound);
+    }
+
+    /**
+     * Starts the dispatcher thread that hands queued receipts to the pipeline.
+     */
+    public synchronized void start() {
+        if (dispatcher != null)
+            return;
+
+        stopping = false;
+        dispatcher = new Thread(this::dispatch, "receipt-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stops the dispatcher straight away. Receipts still waiting in memory are
+     * spilled so they are picked up again on the next start.
+     */
+    public void stop() {
+        stop(0);
+    }
+
+    /**
+     * Stops the dispatcher from handing out more receipts. In the serial pipeline
+     * the dispatcher runs the receipt itself, so it is given up to the timeout to
+     * finish it before it is interrupted. Receipts still waiting in memory are
+     * spilled so they are picked up again on the next start.
+     *
+     * @param timeoutMillis How long to wait for the dispatcher to finish the
+     *                      receipt it is on.
+     */
+    public void stop(long timeoutMillis) {
+        Thread d;
+        synchronized (this) {
+            if (dispatcher == null)
+                return;
+            d = dispatcher;
+            dispatcher = null;
+            stopping = true;
+        }
+
+        try {
+            if (timeoutMillis > 0)
+                d.join(timeoutMillis);
+            d.interrupt();
+            d.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            Path p;
+            while ((p = queue.pollLast()) != null) {
+                if (!spill(p)) {
+                    // The receipt is still in the spool directory, only its place in
+                    // the queue is lost
+                    queue.offerLast(p);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the receipt as the newest one. This never blocks, if the in memory
+     * queue is full the oldest waiting receipt is spilled to disk. If it can not
+     * be spilled it stays in memory and the queue goes over its bound.
+     *
+     * @param receipt The path of the new receipt.
+     * @return {@link long} of the arrival of the receipt, later receipts have a
+     *         higher arrival.
+     */
+    public long offer(Path receipt) {
+        long arrival = arrivalOf(receipt);
+        queue.offerFirst(receipt);
+
+        while (queue.size() > queueBound) {
+            Path oldest = queue.pollLast();
+            if (oldest == null)
+                break;
+            if (!spill(oldest)) {
+                queue.offerLast(oldest);
+                break;
+            }
+        }
+        return arrival;
+    }
+
+    /**
+     * Changes how many receipts can wait in memory before they are spilled.
+     *
+     * @param queueBound The new bound.
+     */
+    public void setQueueBound(int queueBound) {
+        this.queueBound = Math.max(1, queueBound);
+    }
+
+    /**
+     * Checks if the receipt is still waiting or being processed, either in memory
+     * or spilled to disk.
+     *
+     * @param receipt The path of the receipt.
+     * @return {@link Boolean} if the receipt has not finished processing.
+     */
+    public boolean isPending(Path receipt) {
+        if (dispatched.contains(receipt) || queue.contains(receipt))
+            return true;
+
+        synchronized (this) {
+            try {
+                return Files.exists(spillFile)
+                        && Files.readAllLines(spillFile, StandardCharsets.UTF_8).contains(receipt.toString());
+            } catch (IOException e) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return {@link int} of the number of receipts waiting in memory.
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    private void dispatch() {
+        while (!stopping && !Thread.currentThread().isInterrupted()) {
+            try {
+                if (queue.isEmpty())
+                    unspill();
+
+                Path receipt = queue.pollFirst(100, TimeUnit.MILLISECONDS);
+                if (receipt == null)
+                    continue;
+                if (stopping) {
+                    queue.offerFirst(receipt);
+                    return;
+                }
+                ReceiptTask task = work.apply(receipt, arrivalOf(receipt));
+
+                dispatched.add(receipt);
+                try {
+                    pipeline.submit(receipt.getFileName().toString(), scope -> {
+                        try {
+                            task.run(scope);
+                        } finally {
+                            arrivals.remove(receipt);
+                            dispatched.remove(receipt);
+                        }
+                    });
+                } catch (RejectedExecutionException | InterruptedException e) {
+                    // The pipeline has shut down or the scheduler is stopping before
+                    // the receipt got a slot, leave it for the next start
+                    dispatched.remove(receipt);
+                    queue.offerFirst(receipt);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the arrival of the receipt, numbering it as the newest one if it has
+     * not been seen yet.
+     */
+    private long arrivalOf(Path receipt) {
+        return arrivals.computeIfAbsent(receipt, r -> lastArrival.incrementAndGet());
+    }
+
+    /**
+     * Appends the receipt to the spill file. The caller keeps the receipt in
+     * memory if it could not be spilled, so it is never lost.
+     *
+     * @return {@link Boolean} if the receipt was spilled.
+     */
+    private synchronized boolean spill(Path receipt) {
+        try (BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(receipt.toString());
+            writer.newLine();
+            log.info(String.format("Deferred %s to disk", receipt.getFileName()));
+            return true;
+        } catch (IOException e) {
+            log.warn(String.format("Could not spill %s: %s", receipt, e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Moves the newest spilled receipts back into the queue, up to the queue bound,
+     * and leaves the rest in the spill file. Receipts left over from before a
+     * restart are numbered in the order they were spilled.
+     */
+    private synchronized void unspill() {
+        if (!Files.exists(spillFile))
+            return;
+
+        try {
+            List<String> lines = Files.readAllLines(spillFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (!line.isEmpty())
+                    arrivalOf(Paths.get(line));
+            }
+            int split = Math.max(0, lines.size() - queueBound);
+
+            if (split == 0)
+                Files.delete(spillFile);
+            else
+                Files.write(spillFile, lines.subList(0, split), StandardCharsets.UTF_8);
+
+            for (String line : lines.subList(split, lines.size())) {
+                Path receipt = Paths.get(line);
+                if (!line.isEmpty() && Files.exists(receipt))
+                    queue.offerFirst(receipt);
+                else
+                    arrivals.remove(receipt);
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Could not read spill file %s: %s", spillFile, e.getMessage()));
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+package main.watch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.log.ConsoleLog;
+
+/**
+ * Watchdog that looks for pipeline stages that have stopped making progress.
+ * Each stage opens a {@link Heartbeat} for the thread it runs on and beats it
+ * as it makes progress. When a heartbeat goes quiet for longer than its timeout
+ * the stage is reported with a stack dump of its thread, any subprocess
+ * attached to it is killed and the thread is interrupted.
+ *
+ * If the stage is still stuck one timeout after that, the thread is abandoned.
+ * Every heartbeat open on that thread has its abandon hook run so the owner can
+ * give up on the work and bring in a replacement thread.
+ *
+ * An interrupt does not unblock a thread stuck reading from a socket, and in
+ * the serial pipeline there is no spare thread to replace it with. The HTTP
+ * clients have their own timeouts, which should be shorter than the stage
+ * timeout, and they are what actually ends a stuck request. The watchdog then
+ * only reports it.
+ */
+public class StallWatchdog {
+    private static final ConsoleLog log = new ConsoleLog("StallWatchdog");
+    private final Set<Heartbeat> active = ConcurrentHashMap.newKeySet();
+    private final AtomicLong stalls = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Starts checking the heartbeats on a daemon thread.
+     *
+     * @param intervalMillis How often the heartbeats are checked.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (scheduler != null)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stall-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking the heartbeats.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Opens a heartbeat for a stage running on the current thread.
+     *
+     * @param stage         The name of the stage.
+     * @param timeoutMillis How long the stage can go without a beat, 0 to never
+     *                      time out on its own.
+     * @return {@link Heartbeat} to beat and end once the stage is done.
+     */
+    public Heartbeat begin(String stage, long timeoutMillis) {
+        Heartbeat hb = new Heartbeat(stage, Thread.currentThread(), timeoutMillis);
+        active.add(hb);
+        return hb;
+    }
+
+    /**
+     * Runs a stage on the current thread with a heartbeat open for it, for stages
+     * that can not beat as they go.
+     *
+     * @param <T>           The result of the stage.
+     * @param stage         The name of the stage.
+     * @param timeoutMillis How long the stage can take, 0 to never time out.
+     * @param work          The stage to run.
+     * @return The result of the stage.
+     * @throws Exception Anything the stage throws.
+     */
+    public <T> T watch(String stage, long timeoutMillis, Callable<T> work) throws Exception {
+        Heartbeat hb = begin(stage, timeoutMillis);
+        try {
+            return work.call();
+        } finally {
+            hb.end();
+        }
+    }
+
+    /**
+     * @return {@link long} of the number of stalls seen since start up.
+     */
+    public long getStallCount() {
+        return stalls.get();
+    }
+
+    private void checkSafely() {
+        try {
+            check(System.currentTimeMillis());
+        } catch (Exception e) {
+            log.warn(String.format("Watchdog check failed: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Checks every open heartbeat against its timeout.
+     *
+     * @param now The current time in milliseconds.
+     */
+    void check(long now) {
+        for (Heartbeat hb : active) {
+            if (hb.timeoutMillis <= 0 || hb.abandoned)
+                continue;
+
+            if (hb.stalledAt == 0 && now - hb.lastBeat > hb.timeoutMillis) {
+                hb.stalledAt = now;
+                stalls.incrementAndGet();
+                report(hb, String.format("Stage '%s' on %s made no progress for %d ms, recovering", hb.stage,
+                        hb.thread.getName(), now - hb.lastBeat));
+
+                Process p = hb.process;
+                if (p != null && p.isAlive())
+                    p.destroyForcibly();
+                hb.thread.interrupt();
+            } else if (hb.stalledAt != 0 && now - hb.stalledAt > hb.timeoutMillis) {
+                report(hb, String.format("Stage '%s' on %s did not recover, abandoning the thread", hb.stage,
+                        hb.thread.getName()));
+                abandon(hb.thread);
+            }
+        }
+    }
+
+    /**
+     * Runs the abandon hooks of every heartbeat open on the thread.
+     */
+    private void abandon(Thread thread) {
+        List<Heartbeat> onThread = new ArrayList<Heartbeat>();
+        for (Heartbeat hb : active) {
+            if (hb.thread == thread)
+                onThread.add(hb);
+        }
+
+        for (Heartbeat hb : onThread) {
+            hb.abandoned = true;
+            Runnable hook = hb.onAbandon;
+            if (hook == null)
+                continue;
+            try {
+                hook.run();
+            } catch (Exception e) {
+                log.warn(String.format("Abandon hook for '%s' failed: %s", hb.stage, e.getMessage()));
+            }
+        }
+    }
+
+    private void report(Heartbeat hb, String message) {
+        StringBuilder dump = new StringBuilder(message);
+        for (StackTraceElement e : hb.thread.getStackTrace()) {
+            dump.append(System.lineSeparator()).append("\tat ").append(e);
+        }
+        log.warn(dump.toString());
+    }
+
+    /**
+     * Progress tracker for a single stage running on a single thread.
+     */
+    public class Heartbeat {
+        private final String stage;
+        private final Thread thread;
+        private final long timeoutMillis;
+        private volatile long lastBeat = System.currentTimeMillis();
+        private volatile long stalledAt;
+        private volatile boolean abandoned;
+        private volatile Process process;
+        private volatile Runnable onAbandon;
+
+        private Heartbeat(String stage, Thread thread, long timeoutMillis) {
+            this.stage = stage;
+            this.thread = thread;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Marks that the stage has made progress. A stalled stage that beats again
+         * has recovered.
+         */
+        public void beat() {
+            lastBeat = System.currentTimeMillis();
+            stalledAt = 0;
+        }
+
+        /**
+         * Attaches the subprocess the stage is waiting on so that it can be killed if
+         * the stage stalls.
+         *
+         * @param p The subprocess.
+         */
+        public void attach(Process p) {
+            this.process = p;
+            beat();
+        }
+
+        /**
+         * Sets the hook that is run when the thread of this heartbeat is abandoned.
+         * The hook runs on the watchdog thread.
+         *
+         * @param hook The hook to run.
+         */
+        public void onAbandon(Runnable hook) {
+            this.onAbandon = hook;
+        }
+
+        /**
+         * @return {@link Boolean} if the watchdog has had to step in on this stage.
+         */
+        public boolean isStalled() {
+            return stalledAt != 0 || abandoned;
+        }
+
+        /**
+         * @return {@link Boolean} if the watchdog has given up on this thread.
+         */
+        public boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * Ends the heartbeat once the stage is done, the watchdog stops checking it.
+         */
+        public void end() {
+            active.remove(this);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package main.watch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.log.ConsoleLog;
+
+/**
+ * Uploads that failed after their receipt was already stored in the database.
+ * The receipt is left in the spool directory and its upload is tried again on a
+ * background thread until it goes through. The uploads waiting for a retry are
+ * kept in a file, one per line, so they are tried again after a restart.
+ *
+ * <pre>
+ * id	publicId	path
+ * </pre>
+ */
+public class UploadRetry {
+    private static final ConsoleLog log = new ConsoleLog("UploadRetry");
+
+    /**
+     * Uploads the file of a stored receipt and points the receipt at it.
+     */
+    public interface Attempt {
+        void run(int id, String publicId, Path file) throws Exception;
+    }
+
+    private final Path retryFile;
+    private final Attempt attempt;
+    private final Map<String, Upload> uploads = new LinkedHashMap<String, Upload>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the retry queue and reads back the uploads left in the retry file
+     * by a previous run.
+     *
+     * @param retryFile The file to keep the waiting uploads in.
+     * @param attempt   Uploads the file of a receipt, throwing if it failed.
+     */
+    public UploadRetry(Path retryFile, Attempt attempt) {
+        this.retryFile = retryFile;
+        this.attempt = attempt;
+        load();
+    }
+
+    /**
+     * Starts the background thread that retries the waiting uploads.
+     *
+     * @param intervalSeconds How long to wait between retries.
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (scheduler != null)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::retryAll, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the background thread. The uploads still waiting stay in the retry
+     * file for the next start.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Queues the upload of a stored receipt to be tried again. If it can not be
+     * written to the retry file it is still retried until the reader stops.
+     *
+     * @param id       The id of the stored receipt.
+     * @param publicId The public id to upload the file under.
+     * @param file     The receipt in the spool directory.
+     */
+    public void add(int id, String publicId, Path file) {
+        Upload upload = new Upload(id, publicId, file);
+        synchronized (uploads) {
+            uploads.put(publicId, upload);
+            try (BufferedWriter writer = Files.newBufferedWriter(retryFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(upload.toLine());
+                writer.newLine();
+            } catch (IOException e) {
+                log.warn(String.format("Could not record the upload of '%s' for a retry: %s", publicId,
+                        e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @return {@link int} of the number of uploads waiting for a retry.
+     */
+    public int getWaiting() {
+        synchronized (uploads) {
+            return uploads.size();
+        }
+    }
+
+    /**
+     * Tries every waiting upload once. The ones that go through are dropped from
+     * the retry file, the rest wait for the next pass. An upload whose receipt is
+     * no longer in the spool directory can never go through and is dropped.
+     */
+    void retryAll() {
+        List<Upload> waiting;
+        synchronized (uploads) {
+            waiting = new ArrayList<Upload>(uploads.values());
+        }
+        if (waiting.isEmpty())
+            return;
+
+        for (Upload upload : waiting) {
+            if (!Files.exists(upload.file)) {
+                log.error(String.format("Receipt %d lost its file %s before '%s' was uploaded", upload.id,
+                        upload.file, upload.publicId));
+            } else {
+                try {
+                    attempt.run(upload.id, upload.publicId, upload.file);
+                    log.info(String.format("Uploaded '%s' for receipt %d on a retry", upload.publicId, upload.id));
+                } catch (Exception e) {
+                    log.warn(String.format("Retry of '%s' failed: %s", upload.publicId, e.getMessage()));
+                    continue;
+                }
+            }
+
+            synchronized (uploads) {
+                uploads.remove(upload.publicId);
+            }
+        }
+        save();
+    }
+
+    /**
+     * Reads the uploads left in the retry file.
+     */
+    private void load() {
+        if (!Files.exists(retryFile))
+            return;
+
+        try {
+            for (String line : Files.readAllLines(retryFile, StandardCharsets.UTF_8)) {
+                Upload upload = Upload.parse(line);
+                if (upload != null)
+                    uploads.put(upload.publicId, upload);
+            }
+            if (!uploads.isEmpty())
+                log.info(String.format("%d uploads are waiting for a retry", uploads.size()));
+        } catch (IOException e) {
+            log.warn(String.format("Could not read retry file %s: %s", retryFile, e.getMessage()));
+        }
+    }
+
+    /**
+     * Rewrites the retry file with the uploads still waiting, through a temporary
+     * file so a crash never leaves it half written.
+     */
+    private void save() {
+        synchronized (uploads) {
+            List<String> lines = new ArrayList<String>();
+            for (Upload upload : uploads.values()) {
+                lines.add(upload.toLine());
+            }
+
+            try {
+                if (lines.isEmpty()) {
+                    Files.deleteIfExists(retryFile);
+                } else {
+                    Path temp = retryFile.resolveSibling(retryFile.getFileName() + ".tmp");
+                    Files.write(temp, lines, StandardCharsets.UTF_8);
+                    Files.move(temp, retryFile, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                log.warn(String.format("Could not update retry file %s: %s", retryFile, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * An upload waiting for a retry.
+     */
+    private static class Upload {
+        private final int id;
+        private final String publicId;
+        private final Path file;
+
+        private Upload(int id, String publicId, Path file) {
+            this.id = id;
+            this.publicId = publicId;
+            this.file = file;
+        }
+
+        private String toLine() {
+            return String.format("%d\t%s\t%s", id, publicId, file);
+        }
+
+        private static Upload parse(String line) {
+            String[] parts = line.split("\t", 3);
+            if (parts.length != 3)
+                return null;
+            try {
+                return new Upload(Integer.parseInt(parts[0]), parts[1], Paths.get(parts[2]));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -6,8 +6,7 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintStream;
+import java.net.InetSocketAddress;
 /*
  * Copyright (c) 2008, 2010, Oracle and/or its affiliates. All rights reserved.
  *
@@ -40,17 +39,38 @@ import java.io.PrintStream;
  */
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
-
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.archive.SpoolArchiver;
 import main.cloudinary.ReceiptCloud;
+import main.cloudinary.ReceiptCloud.UploadMode;
+import main.config.ReceiptConfig;
 import main.domain.APIClient;
+import main.domain.ApiTransport;
+import main.domain.ReceiptIdPool;
 import main.domain.model.Receipt;
+import main.domain.model.ReceiptDetails;
+import main.extract.ReceiptExtractor;
+import main.log.ConsoleLog;
 import main.python.NfcTagWriter;
+import main.python.NfcTagWriter.TagFormat;
+import main.server.ReceiptServer;
+import main.watch.ReceiptPipeline.Mode;
+import main.watch.ReceiptPipeline.TaskScope;
 
 /**
  * Example to watch a directory (or tree) for changes to files. This code has
@@ -59,14 +79,34 @@ import main.python.NfcTagWriter;
  * @author Seth Hancock
  * @since November 4, 2021
  */
-@SuppressWarnings("all")
 public class WatchDir {
+    private static final ConsoleLog log = new ConsoleLog("WatchDir");
+    private static final long SHUTDOWN_SECONDS = 30;
+
+    private final ReceiptConfig config;
 
-    private PrintStream baseStream;
-    private PrintStream disabledStream;
     private ReceiptCloud receiptCloud;
     private APIClient apiclient;
+    private ReceiptIdPool idPool;
     private NfcTagWriter nfcTagWriter;
+    private SpoolArchiver archiver;
+    private ReceiptPipeline pipeline;
+    private ReceiptScheduler scheduler;
+    private StallWatchdog watchdog;
+    private UploadRetry uploadRetry;
+    private ReceiptServer server;
+    private String serverBaseUrl;
+    private ReceiptExtractor extractor;
+    private volatile long stageTimeoutMillis;
+    private volatile boolean extractEnabled;
+    private volatile UploadMode uploadMode = UploadMode.EAGER;
+    private final AtomicLong lastSequence = new AtomicLong();
+    private final Map<Path, Integer> leasedIds = new ConcurrentHashMap<Path, Integer>();
+    private final ExecutorService tagWriters = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "tag-writer");
+        t.setDaemon(true);
+        return t;
+    });
 
     private final WatchService watcher;
     private final Map<WatchKey, Path> keys;
@@ -74,16 +114,43 @@ public class WatchDir {
 
     /**
      * Default constructor that creates a WatchService and registers the given
-     * directory that was passed in from the terminal.
+     * directory that was passed in from the terminal. The configuration only comes
+     * from the defaults and the environment, which must set the accounts.
      * 
      * @param dir The directory that needs to be watched.
      */
     public WatchDir(Path dir) throws IOException {
+        this(dir, new ReceiptConfig(null));
+    }
+
+    /**
+     * Constructor that creates a WatchService and registers the given directory,
+     * using the given configuration for the clients. The tuning values are applied
+     * again each time the configuration is reloaded.
+     * 
+     * @param dir    The directory that needs to be watched.
+     * @param config The configuration to run with.
+     */
+    public WatchDir(Path dir, ReceiptConfig config) throws IOException {
         this.watcher = FileSystems.getDefault().newWatchService();
         this.keys = new HashMap<WatchKey, Path>();
+        this.config = config;
 
+        config.requireAccounts();
         initalizeClients();
         register(dir);
+        initalizeArchiver(dir);
+        initalizePipeline();
+        initalizeWatchdog();
+        initalizeUploadRetry(dir);
+        initalizeScheduler(dir);
+        initalizeServer();
+
+        applyTuning(config);
+        config.onReload(this::applyTuning);
+        config.watch();
+        scheduler.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "receipt-shutdown"));
 
         this.trace = true; // enable trace after initial registration
         printConsole("Listening to Directory...");
@@ -94,16 +161,204 @@ public class WatchDir {
      * class.
      */
     private void initalizeClients() {
-        this.baseStream = System.out;
-        initDisabledStream();
-
-        disableLogging();
-        this.receiptCloud = new ReceiptCloud();
+        ConsoleLog.silenceSystemOut();
+        this.receiptCloud = new ReceiptCloud(config.get(ReceiptConfig.CLOUDINARY_CLOUD_NAME),
+                config.get(ReceiptConfig.CLOUDINARY_API_KEY), config.get(ReceiptConfig.CLOUDINARY_API_SECRET),
+                config.get(ReceiptConfig.CLOUDINARY_UPLOAD_PREFIX));
         this.nfcTagWriter = new NfcTagWriter();
+        this.extractor = new ReceiptExtractor();
 
+        String email = config.get(ReceiptConfig.API_EMAIL);
         printConsole("INFO: Authenticating User Client...");
-        this.apiclient = new APIClient("pi@admin.com", "piadmin");
-        printConsole(String.format("Authentication Complete for user %s!\n", "pi@admin.com"));
+        ApiTransport.Kind kind = ApiTransport.Kind.of(config.get(ReceiptConfig.API_TRANSPORT));
+        if (kind == ApiTransport.Kind.WEBCLIENT && System.getProperty("org.graalvm.nativeimage.imagecode") != null) {
+            // The native image is built without the Spring and Netty stack
+            printConsole("WebClient is not in the native image, using the http client transport.");
+            kind = ApiTransport.Kind.HTTP_CLIENT;
+        }
+        ApiTransport transport = ApiTransport.create(kind, config.get(ReceiptConfig.API_URL));
+        this.apiclient = new APIClient(transport, email, config.get(ReceiptConfig.API_PASSWORD));
+        printConsole(String.format("Authentication Complete for user %s!\n", email));
+
+        if (config.getBoolean(ReceiptConfig.PIPELINE_TAG_FIRST)) {
+            this.idPool = new ReceiptIdPool(apiclient, config.getInt(ReceiptConfig.API_LEASE_SIZE),
+                    config.getInt(ReceiptConfig.API_LEASE_REFILL_BELOW));
+            printConsole("Tag first mode enabled, leasing receipt ids.");
+        }
+    }
+
+    /**
+     * Applies the values from the configuration that are safe to change while
+     * receipts are being processed. This is called on start up and after every
+     * reload of the configuration file.
+     * 
+     * @param c The configuration to apply.
+     */
+    private void applyTuning(ReceiptConfig c) {
+        // Parse the named values and check the scripts first so a bad one does not
+        // leave half applied
+        TagFormat tagFormat = TagFormat.of(c.get(ReceiptConfig.NFC_TAG_FORMAT));
+        UploadMode mode = UploadMode.of(c.get(ReceiptConfig.CLOUDINARY_UPLOAD_MODE));
+        nfcTagWriter.setScriptDir(c.get(ReceiptConfig.NFC_SCRIPT_DIR));
+
+        apiclient.setTimeout(Duration.ofSeconds(c.getLong(ReceiptConfig.API_TIMEOUT_SECONDS)));
+        if (idPool != null) {
+            idPool.setLeaseSize(c.getInt(ReceiptConfig.API_LEASE_SIZE));
+            idPool.setRefillBelow(c.getInt(ReceiptConfig.API_LEASE_REFILL_BELOW));
+        }
+
+        extractEnabled = c.getBoolean(ReceiptConfig.EXTRACT_ENABLED);
+        uploadMode = mode;
+        receiptCloud.setTimeoutMillis(c.getInt(ReceiptConfig.CLOUDINARY_TIMEOUT_SECONDS) * 1000);
+
+        nfcTagWriter.setTagFormat(tagFormat);
+        nfcTagWriter.setTagHoldMillis(c.getLong(ReceiptConfig.NFC_TAG_HOLD_SECONDS) * 1000);
+        nfcTagWriter.setTagMinHoldMillis(c.getLong(ReceiptConfig.NFC_TAG_MIN_HOLD_SECONDS) * 1000);
+        nfcTagWriter.setScriptTimeoutMillis(c.getLong(ReceiptConfig.NFC_SCRIPT_TIMEOUT_SECONDS) * 1000);
+        stageTimeoutMillis = c.getLong(ReceiptConfig.WATCHDOG_STAGE_TIMEOUT_SECONDS) * 1000;
+
+        pipeline.setMaxInFlight(c.getInt(ReceiptConfig.PIPELINE_MAX_IN_FLIGHT));
+        pipeline.setStageThreads(c.getInt(ReceiptConfig.PIPELINE_STAGE_THREADS));
+        scheduler.setQueueBound(c.getInt(ReceiptConfig.PIPELINE_QUEUE_BOUND));
+
+        archiver.setMinAgeMillis(c.getLong(ReceiptConfig.ARCHIVE_MIN_AGE_MINUTES) * 60000);
+        archiver.setBytesPerSecond(c.getLong(ReceiptConfig.ARCHIVE_BYTES_PER_SECOND));
+        archiver.setMaxSegmentBytes(c.getLong(ReceiptConfig.ARCHIVE_MAX_SEGMENT_BYTES));
+        archiver.setRetentionDays(c.getInt(ReceiptConfig.ARCHIVE_RETENTION_DAYS));
+        archiver.setMaxArchiveBytes(c.getLong(ReceiptConfig.ARCHIVE_MAX_BYTES));
+
+        if (server != null) {
+            server.setUrlTtlSeconds(c.getLong(ReceiptConfig.SERVER_URL_TTL_SECONDS));
+            server.setMaxEntries(c.getInt(ReceiptConfig.SERVER_CACHE_ENTRIES));
+            server.setMaxCachedBytes(c.getLong(ReceiptConfig.SERVER_CACHE_BYTES));
+        }
+    }
+
+    /**
+     * Starts the archiver that moves processed receipts out of the watched
+     * directory into the archive directory. If no archive directory is configured
+     * a sibling of the watched directory is used.
+     * 
+     * @param dir The directory that is being watched.
+     */
+    private void initalizeArchiver(Path dir) {
+        String configured = config.get(ReceiptConfig.ARCHIVE_DIR);
+        Path archiveDir = configured != null ? Paths.get(configured)
+                : dir.toAbsolutePath().resolveSibling(dir.getFileName() + "-archive");
+        this.archiver = new SpoolArchiver(dir, archiveDir);
+        this.archiver.start(config.getLong(ReceiptConfig.ARCHIVE_INTERVAL_SECONDS));
+    }
+
+    /**
+     * Creates the pipeline the receipts will be processed on. The execution mode
+     * can be serial, platform or virtual.
+     */
+    private void initalizePipeline() {
+        this.pipeline = new ReceiptPipeline(Mode.of(config.get(ReceiptConfig.PIPELINE_EXECUTOR)),
+                config.getInt(ReceiptConfig.PIPELINE_MAX_IN_FLIGHT),
+                config.getInt(ReceiptConfig.PIPELINE_STAGE_THREADS));
+        printConsole(String.format("Receipt pipeline running in %s mode.", pipeline.getMode()));
+    }
+
+    /**
+     * Starts the watchdog that recovers stages of the pipeline that stop making
+     * progress.
+     */
+    private void initalizeWatchdog() {
+        this.watchdog = new StallWatchdog();
+        this.nfcTagWriter.setWatchdog(watchdog);
+        this.pipeline.setWatchdog(watchdog);
+        this.watchdog.start(config.getLong(ReceiptConfig.WATCHDOG_INTERVAL_SECONDS) * 1000);
+    }
+
+    /**
+     * Starts the queue of uploads that failed after their receipt was stored. A
+     * retry uploads the file, points the receipt at it and archives the receipt.
+     * 
+     * @param dir The directory that is being watched.
+     */
+    private void initalizeUploadRetry(Path dir) {
+        String configured = config.get(ReceiptConfig.CLOUDINARY_RETRY_FILE);
+        Path retryFile = configured != null ? Paths.get(configured)
+                : dir.toAbsolutePath().resolveSibling(dir.getFileName() + "-upload-retry.queue");
+
+        this.uploadRetry = new UploadRetry(retryFile, (id, pId, file) -> {
+            watchdog.watch("cloudinary-upload", stageTimeoutMillis, () -> uploadFile(file.toString(), pId));
+            apiclient.markReceiptUploaded(id, pId);
+            archiver.archive(file);
+        });
+        this.uploadRetry.start(config.getLong(ReceiptConfig.CLOUDINARY_RETRY_INTERVAL_SECONDS));
+    }
+
+    /**
+     * Creates the scheduler that queues new receipts for the pipeline newest first
+     * and spills the backlog to disk during a burst. The archiver leaves receipts
+     * alone until the scheduler is done with them.
+     * 
+     * @param dir The directory that is being watched.
+     */
+    private void initalizeScheduler(Path dir) {
+        String configured = config.get(ReceiptConfig.PIPELINE_SPILL_FILE);
+        Path spillFile = configured != null ? Paths.get(configured)
+                : dir.toAbsolutePath().resolveSibling(dir.getFileName() + "-spill.queue");
+
+        this.scheduler = new ReceiptScheduler(pipeline,
+                (receipt, arrival) -> scope -> handleReceipt(scope, receipt, arrival), spillFile,
+                config.getInt(ReceiptConfig.PIPELINE_QUEUE_BOUND));
+        this.archiver.setPendingCheck(scheduler::isPending);
+    }
+
+    /**
+     * Starts the server that hands out receipts on the local network while they
+     * are still uploading, if it is enabled. The links are signed with the
+     * configured secret and sent with the insert, so both the secret and the url
+     * phones reach the reader on must be set. The server failing to start does not
+     * stop receipts from being processed.
+     */
+    private void initalizeServer() {
+        if (!config.getBoolean(ReceiptConfig.SERVER_ENABLED))
+            return;
+
+        String secret = config.get(ReceiptConfig.SERVER_SECRET);
+        String baseUrl = config.get(ReceiptConfig.SERVER_BASE_URL);
+        if (secret == null || baseUrl == null) {
+            log.warn(String.format("Receipt server is enabled but %s and %s are not both set, not starting it.",
+                    ReceiptConfig.SERVER_SECRET, ReceiptConfig.SERVER_BASE_URL));
+            return;
+        }
+
+        try {
+            this.server = new ReceiptServer(new InetSocketAddress(config.getInt(ReceiptConfig.SERVER_PORT)), 2,
+                    secret);
+            this.serverBaseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+            this.server.start();
+        } catch (IOException e) {
+            log.warn(String.format("Could not start receipt server: %s", e.getMessage()));
+            this.server = null;
+        }
+    }
+
+    /**
+     * Stops the reader when the process is told to exit. No more receipts are
+     * handed out, the ones waiting in memory are spilled to disk and the ones in
+     * flight are given {@link #SHUTDOWN_SECONDS} to finish. Anything left is
+     * picked up again from the spill file and the retry file on the next start.
+     */
+    private void shutdown() {
+        printConsole("Shutting down, finishing the receipts in flight...");
+        scheduler.stop(SHUTDOWN_SECONDS * 1000);
+        try {
+            pipeline.shutdown(SHUTDOWN_SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        uploadRetry.stop();
+        archiver.stop();
+        watchdog.stop();
+        if (server != null)
+            server.stop();
+        printConsole("Shutdown complete.");
     }
 
     /**
@@ -166,7 +421,7 @@ public class WatchDir {
         Path dir = keys.get(k);
 
         for (WatchEvent<?> event : k.pollEvents()) {
-            WatchEvent.Kind kind = event.kind();
+            WatchEvent.Kind<?> kind = event.kind();
 
             // Context for directory entry event is the file name of entry
             WatchEvent<Path> ev = cast(event);
@@ -180,29 +435,249 @@ public class WatchDir {
             // Print out event
             printConsole(String.format("%s for %s\n", event.kind().name(), child));
 
-            // Store Receipt Data
-            storeReceipt(String.format("receipt_%d_%d", apiclient.getAutoIncrement(), generateKey()), child.toString());
+            // Lease the id in the order receipts arrive, since the scheduler hands
+            // them out newest first
+            leaseId(child);
+
+            // Queue Receipt Data, this never blocks the watcher
+            scheduler.offer(child);
+        }
+    }
+
+    /**
+     * Takes a leased id for the new receipt when tag first mode is on. Taking an
+     * id never makes a request, so this does not hold up the watcher.
+     * 
+     * @param receipt The path to receipt.
+     */
+    private void leaseId(Path receipt) {
+        Integer id = idPool == null ? null : idPool.take();
+        if (id != null)
+            leasedIds.put(receipt, id);
+    }
+
+    /**
+     * Picks how the receipt is stored. When tag first mode is on and the receipt
+     * was given a leased id when it arrived the tag is written straight away,
+     * otherwise the receipt goes through the upload and insert before the tag. A
+     * receipt left in the spill file from before a restart takes an id now.
+     * 
+     * @param scope   The scope to fork the receipt stages on.
+     * @param receipt The path to receipt.
+     * @param arrival The arrival of the receipt, used to rank it for the tag.
+     * @throws Exception If storing the receipt failed.
+     */
+    private void handleReceipt(TaskScope scope, Path receipt, long arrival) throws Exception {
+        Integer leasedId = leasedIds.remove(receipt);
+        if (leasedId == null && idPool != null)
+            leasedId = idPool.take();
+        if (leasedId != null) {
+            String pId = String.format("receipt_%d_%d", leasedId, generateKey());
+            storeReceiptTagFirst(scope, leasedId, pId, receipt.toString(), serveReceipt(pId, receipt), arrival);
+        } else {
+            String pId = String.format("receipt_%d_%d", nextSequence(), generateKey());
+            storeReceipt(pId, receipt.toString(), serveReceipt(pId, receipt), arrival);
+        }
+    }
+
+    /**
+     * Makes the receipt available on the local receipt server, if it is running,
+     * before the upload has started.
+     * 
+     * @param pId     The unique public id of the receipt.
+     * @param receipt The path to receipt.
+     * @return {@link String} of the signed link to send with the insert, or null
+     *         if the server is not running.
+     */
+    private String serveReceipt(String pId, Path receipt) {
+        if (server == null)
+            return null;
+
+        server.register(pId, receipt);
+        String link = serverBaseUrl + server.signedPath(pId);
+        printConsole(String.format("Receipt '%s' available at %s", pId, link));
+        return link;
+    }
+
+    /**
+     * Writes the leased receipt id to the tag first so the customer can tap right
+     * away. The receipt is reserved in the database as pending and uploaded at the
+     * same time, and once both are done it is marked as uploaded. The tag is only
+     * written once the pending row is in, so a failed insert never reaches the
+     * tag. A failed upload leaves the receipt pending and on the tag, and hands
+     * the upload to the {@link UploadRetry}, which marks the receipt as uploaded
+     * once it goes through.
+     * 
+     * The tag write and its hold run on their own thread rather than on the
+     * scope, since in the serial pipeline forked stages run one after another on
+     * the calling thread and the upload would wait out the whole hold.
+     * 
+     * @param scope    The scope to fork the receipt stages on.
+     * @param id       The leased id of the receipt.
+     * @param pId      The unique public id of the receipt.
+     * @param filePath The path to receipt.
+     * @param link     The link to the receipt on the local server, can be null.
+     * @param arrival  The arrival of the receipt.
+     * @throws Exception If the insert failed.
+     */
+    private void storeReceiptTagFirst(TaskScope scope, int id, String pId, String filePath, String link,
+            long arrival) throws Exception {
+        ReceiptDetails details = extractDetails(filePath);
+
+        // 1. Reserve the receipt in the database as pending
+        Future<Receipt> insert = scope.fork(() -> watchdog.watch("api-insert", stageTimeoutMillis, () -> {
+            printConsole(String.format("Inserting pending '%s' to Database...", pId));
+            return apiclient.insertPendingReceipt(id, pId, details, link);
+        }));
+
+        // 2. Write id to NFC tag once it is reserved
+        Future<?> tag = tagWriters.submit(() -> writeReservedTag(insert, id, pId, arrival));
+
+        // 3. Store receipt in S3 bucket
+        Future<Boolean> upload = scope.fork(() -> {
+            try {
+                return watchdog.watch("cloudinary-upload", stageTimeoutMillis, () -> uploadFile(filePath, pId));
+            } catch (Exception e) {
+                log.warn(String.format("Upload of pending '%s' failed: %s", pId, e.getMessage()));
+                return false;
+            }
+        });
+
+        try {
+            scope.join();
+        } catch (Exception e) {
+            tag.cancel(true);
+            throw e;
+        }
+
+        // 4. Mark it as uploaded, or leave it pending until the retry uploads it
+        try {
+            if (upload.get()) {
+                watchdog.watch("api-update", stageTimeoutMillis, () -> apiclient.markReceiptUploaded(id, pId));
+                printConsole(String.format("Receipt '%s' marked as uploaded.", pId));
+
+                // 5. Move the processed receipt out of the watched directory
+                archiver.archive(Paths.get(filePath));
+                return;
+            }
+        } catch (Exception e) {
+            log.warn(String.format("Could not mark '%s' as uploaded: %s", pId, e.getMessage()));
+        }
+        uploadRetry.add(id, pId, Paths.get(filePath));
+    }
+
+    /**
+     * Writes the leased receipt id to the tag once its pending row is in. This
+     * runs on its own thread, so anything that keeps the receipt off the tag is
+     * logged here.
+     * 
+     * @param insert  The insert of the pending row.
+     * @param id      The leased id of the receipt.
+     * @param pId     The unique public id of the receipt.
+     * @param arrival The arrival of the receipt.
+     */
+    private void writeReservedTag(Future<Receipt> insert, int id, String pId, long arrival) {
+        try {
+            insert.get();
+        } catch (ExecutionException e) {
+            log.warn(String.format("Receipt %d was not written to the tag, its pending row was not inserted: %s",
+                    id, e.getCause().getMessage()));
+            return;
+        } catch (CancellationException | InterruptedException e) {
+            log.warn(String.format("Receipt %d was not written to the tag, it was cancelled.", id));
+            return;
+        }
+
+        try {
+            writeTag(id, pId, arrival);
+        } catch (RuntimeException e) {
+            log.error(String.format("Tag write for Receipt %d failed: %s", id, e.getMessage()));
         }
     }
 
     /**
      * Run the commands to store the receipt into the Cloudinary S3 bucket, insert
-     * it into the database, and then write the receipt id to the tag.
+     * it into the database, and then write the receipt id to the tag. The insert
+     * waits for the upload, so a receipt is never stored pointing at a file that
+     * is not on cloudinary.
+     * 
+     * If the upload fails the receipt is still inserted, without a file public
+     * id, and written to the tag, the way it was before the upload could fail the
+     * receipt. Its upload is handed to the {@link UploadRetry}, which points the
+     * receipt at the file once it goes through.
+     * 
+     * When the details of the receipt could be read they are inserted with it, and
+     * the upload can be moved after the tag or skipped with the upload mode.
+     * Receipts without details are always uploaded before the tag is written. A
+     * receipt that is not uploaded is inserted without a file public id, so
+     * nothing points at a file that is not on cloudinary. If the upload after the
+     * tag fails it is handed to the {@link UploadRetry} as well.
      * 
      * @param pid      The unique public id of the receipt.
      * @param filePath The path to receipt.
+     * @param link     The link to the receipt on the local server, can be null.
+     * @param arrival  The arrival of the receipt.
+     * @throws Exception If the insert failed.
      */
-    private void storeReceipt(String pId, String filePath) {
+    private void storeReceipt(String pId, String filePath, String link, long arrival) throws Exception {
+        ReceiptDetails details = extractDetails(filePath);
+        UploadMode mode = details == null ? UploadMode.EAGER : uploadMode;
+
         // 1. Store receipt in S3 bucket
-        uploadFile(filePath, pId);
+        boolean uploaded = false;
+        if (mode == UploadMode.EAGER) {
+            try {
+                uploaded = watchdog.watch("cloudinary-upload", stageTimeoutMillis, () -> uploadFile(filePath, pId));
+            } catch (Exception e) {
+                log.warn(String.format("Upload of '%s' failed, storing the receipt without its file: %s", pId,
+                        e.getMessage()));
+            }
+        }
+
+        String filePublicId = uploaded || mode == UploadMode.LAZY ? pId : null;
+        if (mode == UploadMode.NONE)
+            printConsole(String.format("Receipt '%s' is not uploaded, inserting its details only.", pId));
 
         // 2. Store receipt into database
-        Receipt receipt = insertReceiptToDatabase(pId);
+        Receipt receipt = watchdog.watch("api-insert", stageTimeoutMillis,
+                () -> insertReceiptToDatabase(filePublicId, details, link));
+
+        // 3. Write id to NFC tag, the newest receipt gets the tag first
+        writeTag(receipt.getId(), filePublicId, arrival);
 
-        // 3. Write id to NFC tag
-        enableLogging();
-        nfcTagWriter.write(receipt.getId());
-        disableLogging();
+        // 4. Store receipt in S3 bucket now that the customer has the tag
+        if (mode == UploadMode.LAZY) {
+            try {
+                uploaded = watchdog.watch("cloudinary-upload", stageTimeoutMillis, () -> uploadFile(filePath, pId));
+            } catch (Exception e) {
+                log.error(String.format("Receipt %d is on the tag but its file '%s' was not uploaded: %s",
+                        receipt.getId(), pId, e.getMessage()));
+            }
+        }
+
+        // 5. Retry the upload that failed, the retry archives the receipt
+        if (mode != UploadMode.NONE && !uploaded) {
+            uploadRetry.add(receipt.getId(), pId, Paths.get(filePath));
+            return;
+        }
+
+        // 6. Move the processed receipt out of the watched directory
+        archiver.archive(Paths.get(filePath));
+    }
+
+    /**
+     * Writes the receipt to the tag. A receipt that is skipped because a newer one
+     * took the tag, or whose write script did not finish, is still stored, it just
+     * never reaches the tag.
+     * 
+     * @param id      The id of the receipt.
+     * @param pId     The unique public id of the receipt, null if it has no file.
+     * @param arrival The arrival of the receipt.
+     */
+    private void writeTag(int id, String pId, long arrival) {
+        if (!nfcTagWriter.write(id, pId, arrival))
+            log.warn(String.format("Receipt %d was stored but never written to the tag, %d skipped so far.", id,
+                    nfcTagWriter.getSkippedWrites()));
     }
 
     /**
@@ -232,11 +707,40 @@ public class WatchDir {
      * 
      * @param file     The file to be stored.
      * @param publicId The public id to store the file under.
+     * @return {@link Boolean} true once the file is uploaded.
+     * @throws IOException If the upload failed.
      */
-    private void uploadFile(String file, String publicId) {
+    private boolean uploadFile(String file, String publicId) throws IOException {
         printConsole("Cloudinary uploading...");
-        receiptCloud.upload(file, publicId);
+        if (!receiptCloud.upload(file, publicId))
+            throw new IOException(String.format("Cloudinary upload failed for '%s'", publicId));
         printConsole("Cloudinary Upload Complete!");
+        return true;
+    }
+
+    /**
+     * Reads the structured details from the text of the receipt. A receipt that
+     * can not be read is still processed, it just goes without details.
+     * 
+     * @param filePath The path to receipt.
+     * @return {@link ReceiptDetails} of the receipt, or null if there are none.
+     */
+    private ReceiptDetails extractDetails(String filePath) {
+        if (!extractEnabled)
+            return null;
+
+        try {
+            ReceiptDetails details = watchdog.watch("extract", stageTimeoutMillis,
+                    () -> extractor.extract(Paths.get(filePath)));
+            if (details == null)
+                printConsole("No receipt text found, sending the file only.");
+            else
+                printConsole(String.format("Read %d line items from the receipt.", details.getItems().size()));
+            return details;
+        } catch (Exception e) {
+            log.warn(String.format("Could not read the receipt details: %s", e.getMessage()));
+            return null;
+        }
     }
 
     /**
@@ -244,17 +748,33 @@ public class WatchDir {
      * inserted it will then return the receipt object so that id can be used to
      * transmit to the reader.
      * 
-     * @param publicId The public id to be inserted.
+     * @param publicId The public id to be inserted, null if the file is not uploaded.
+     * @param details  The details read from the receipt, can be null.
+     * @param link     The link to the receipt on the local server, can be null.
      * @return {@link Receipt} of the generated receipt data.
      */
-    private Receipt insertReceiptToDatabase(String publicId) {
+    private Receipt insertReceiptToDatabase(String publicId, ReceiptDetails details, String link) {
         printConsole(String.format("Inserting '%s' to Database...", publicId));
-        Receipt receipt = apiclient.insertReceipt(publicId);
+        Receipt receipt = apiclient.insertReceipt(publicId, details, link);
         printConsole("Insert Receipt Complete!");
 
         return receipt;
     }
 
+    /**
+     * Gets the sequence for the public id of a receipt without a leased id. The
+     * auto increment does not move until a receipt is inserted, so receipts in
+     * flight at the same time would all read the same value. Each receipt takes
+     * the auto increment or one past the last sequence handed out, whichever is
+     * larger.
+     * 
+     * @return {@link long} of the sequence.
+     */
+    private long nextSequence() {
+        long autoIncrement = apiclient.getAutoIncrement();
+        return lastSequence.accumulateAndGet(autoIncrement, (last, next) -> Math.max(last + 1, next));
+    }
+
     /**
      * Generates a random 10 digit value that is used to append to strings for
      * hashing and authentication.
@@ -266,41 +786,13 @@ public class WatchDir {
     }
 
     /**
-     * This will print the given string to the console. It will enable it so it can
-     * print to the console and the disable it so that no other logs from third part
-     * libaries are printing to the console.
+     * This will print the given string to the console. Third party libraries print
+     * to {@code System.out}, which is silenced when the clients are created.
      * 
      * @param str The string to display to the console.
      */
     private void printConsole(String str) {
-        enableLogging();
-        System.out.println(String.format("[WatchDir] INFO digital-receipt-reader-pi: %s", str));
-        disableLogging();
-    }
-
-    /**
-     * Disable the logging to the console when third party libaries are called.
-     */
-    private void disableLogging() {
-        System.setOut(disabledStream);
-    }
-
-    /**
-     * Enable the console log.
-     */
-    private void enableLogging() {
-        System.setOut(baseStream);
-    }
-
-    /**
-     * Method to init the disable stream object.
-     */
-    private void initDisabledStream() {
-        disabledStream = new PrintStream(new OutputStream() {
-            public void write(int b) {
-                // Disable console
-            }
-        });
+        log.info(str);
     }
 
     /**
@@ -310,6 +802,7 @@ public class WatchDir {
      * @param event The even passed in to change.
      * @return {@link WatchEvent} of that even object.
      */
+    @SuppressWarnings("unchecked")
     static <T> WatchEvent<T> cast(WatchEvent<?> event) {
         return (WatchEvent<T>) event;
     }